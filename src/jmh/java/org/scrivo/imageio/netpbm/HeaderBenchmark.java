@@ -0,0 +1,90 @@
+package org.scrivo.imageio.netpbm;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the work done before any image data is read: detecting the
+ * format with PbmImageReaderSpi.canDecodeInput, parsing the header and
+ * probing the header of a file with PbmImageProbe. Run the benchmarks with
+ * the gc profiler (the default in the jmh profile of the pom) to get the
+ * number of bytes allocated per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderBenchmark {
+
+	@Param({ "P1", "P2", "P3", "P4", "P5", "P6", "P7" })
+	public String format;
+
+	private byte[] data;
+	private PbmImageReaderSpi spi;
+	private ImageInputStream stream;
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		NetpbmSignature signature = NetpbmSignature.valueOf(format);
+		String header;
+		if (signature == NetpbmSignature.P7) {
+			header = "P7\n# Created by HeaderBenchmark\nWIDTH 1920\n"
+					+ "HEIGHT 1080\nDEPTH 4\nMAXVAL 255\n"
+					+ "TUPLTYPE RGB_ALPHA\nENDHDR\n";
+		} else {
+			header = signature + "\n# Created by HeaderBenchmark\n1920 1080\n"
+					+ (signature == NetpbmSignature.P1
+							|| signature == NetpbmSignature.P4 ? "" : "255\n");
+		}
+		data = (header + "0 0 0 0").getBytes(StandardCharsets.US_ASCII);
+		spi = new PbmImageReaderSpi();
+		stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+		file = Files.createTempFile("header", ".pnm");
+		Files.write(file, data);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.delete(file);
+	}
+
+	@Benchmark
+	public boolean canDecodeInput() {
+		return spi.canDecodeInput(stream);
+	}
+
+	@Benchmark
+	public NetpbmHeader readHeader() throws IOException {
+		return NetpbmUtil.readHeader(new NetpbmImageInputStream(
+				new MemoryCacheImageInputStream(new ByteArrayInputStream(data))));
+	}
+
+	@Benchmark
+	public PbmImageInfo probe() throws IOException {
+		return PbmImageProbe.probe(file);
+	}
+
+}
@@ -0,0 +1,166 @@
+package org.scrivo.imageio.netpbm;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of PbmImageReader.read for all the Netpbm formats at several
+ * image sizes, reading the full image, a source region, a subsampled image
+ * or a single band. The images are generated when the benchmark is set up.
+ *
+ * Next to the number of reads per second the number of megabytes of image
+ * file data read per second is reported (the "megabytes" counter). Run the
+ * benchmarks with the gc profiler (the default in the jmh profile of the
+ * pom) to get the number of bytes allocated per read.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadBenchmark {
+
+	@Param({ "P1", "P2", "P3", "P4", "P5", "P6" })
+	public String format;
+
+	@Param({ "64", "512", "2048" })
+	public int size;
+
+	@Param({ "full", "region", "subsampling", "bands" })
+	public String mode;
+
+	private byte[] data;
+	private PbmImageReader reader;
+	private ImageReadParam param;
+
+	/**
+	 * Counts the image file data read, which JMH reports per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Throughput {
+
+		public double megabytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			megabytes = 0;
+		}
+
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		ImageIO.setUseCache(false);
+		data = createImage(NetpbmSignature.valueOf(format), size, size);
+		reader = new PbmImageReader(new PbmImageReaderSpi());
+
+		param = reader.getDefaultReadParam();
+		switch (mode) {
+		case "region":
+			param.setSourceRegion(new Rectangle(size / 4, size / 4,
+					size / 2, size / 2));
+			break;
+		case "subsampling":
+			param.setSourceSubsampling(2, 2, 0, 0);
+			break;
+		case "bands":
+			param.setSourceBands(new int[] { 0 });
+			param.setDestinationBands(new int[] { 0 });
+			break;
+		default:
+			break;
+		}
+	}
+
+	@Benchmark
+	public BufferedImage read(Throughput throughput) throws IOException {
+		reader.setInput(new MemoryCacheImageInputStream(
+				new ByteArrayInputStream(data)));
+		BufferedImage img = reader.read(0, param);
+		throughput.megabytes += data.length / 1e6;
+		return img;
+	}
+
+	/**
+	 * Create a synthetic image file with a gradient and some noise, so plain
+	 * images have tokens of varying lengths.
+	 *
+	 * @param signature
+	 * 		The format of the image file.
+	 * @param width
+	 * 		The width of the image.
+	 * @param height
+	 * 		The height of the image.
+	 * @return
+	 * 		The contents of the image file.
+	 * @throws IOException
+	 */
+	static byte[] createImage(NetpbmSignature signature, int width,
+			int height) throws IOException {
+		int type;
+		switch (signature) {
+		case P1:
+		case P4:
+			type = BufferedImage.TYPE_BYTE_BINARY;
+			break;
+		case P2:
+		case P5:
+			type = BufferedImage.TYPE_BYTE_GRAY;
+			break;
+		default:
+			type = BufferedImage.TYPE_3BYTE_BGR;
+			break;
+		}
+		BufferedImage img = new BufferedImage(width, height, type);
+		WritableRaster raster = img.getRaster();
+		int max = (1 << raster.getSampleModel().getSampleSize(0)) - 1;
+		int seed = 12345;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				for (int b = 0; b < raster.getNumBands(); b++) {
+					seed = seed * 1103515245 + 12345;
+					int sample = ((x + y + b * 64) + (seed >>> 28)) & 0xff;
+					raster.setSample(x, y, b, sample * max / 255);
+				}
+			}
+		}
+
+		PbmImageWriter writer = new PbmImageWriter(new PbmImageWriterSpi());
+		PbmImageWriteParam writeParam = new PbmImageWriteParam();
+		writeParam.setPlain(signature.ordinal() < NetpbmSignature.P4.ordinal());
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(bos)) {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(img, null, null), writeParam);
+		}
+		return bos.toByteArray();
+	}
+
+}
@@ -2,7 +2,8 @@ package org.scrivo.imageio.netpbm;
 
 /**
  * Header for Netbpm files. A Netbpm header contains a signature, the width
- * and height of the image and a maxColor value. 
+ * and height of the image and a maxColor value. PAM headers also contain the
+ * depth (number of samples per pixel) and the tuple type of the image.
  */
 class NetpbmHeader {
 
@@ -10,6 +11,14 @@ class NetpbmHeader {
 	private int width;
 	private int height;
 	private int maxColor;
+	private int depth;
+	private String tupleType = null;
+	private long headerOffset;
+	private long rasterOffset;
+	/** Lookup table for scaling samples to 8 bit, see getSampleTable. */
+	private byte[] sampleTable = null;
+	/** Lookup table for scaling samples to 16 bit, see getWideSampleTable. */
+	private short[] wideSampleTable = null;
 	
 	/**
 	 * Get the signature of the image.
@@ -64,6 +73,120 @@ class NetpbmHeader {
 	 */
 	public void setMaxColor(int maxColorValue) {
 		this.maxColor = maxColorValue;
+		this.sampleTable = null;
+		this.wideSampleTable = null;
+	}
+	/**
+	 * @return 
+	 * 		The number of samples per pixel.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+	/**
+	 * @param depth
+	 * 		The number of samples per pixel.
+	 */
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+	/**
+	 * @return 
+	 * 		The tuple type of a PAM image (f.i. "RGB_ALPHA"), or null.
+	 */
+	public String getTupleType() {
+		return tupleType;
+	}
+	/**
+	 * @param tupleType
+	 * 		The tuple type of a PAM image.
+	 */
+	public void setTupleType(String tupleType) {
+		this.tupleType = tupleType;
+	}
+	/**
+	 * @return
+	 * 		True if the last sample of each pixel is an alpha (opacity) 
+	 * 		sample. This is the case for PAM images with a depth of 2 
+	 * 		(GRAYSCALE_ALPHA or BLACKANDWHITE_ALPHA) or 4 (RGB_ALPHA).
+	 */
+	public boolean hasAlpha() {
+		return NetpbmSignature.P7 == signature && (depth == 2 || depth == 4);
+	}
+	/**
+	 * @return 
+	 * 		The position in the stream where the header (the signature) of
+	 * 		the image starts.
+	 */
+	public long getHeaderOffset() {
+		return headerOffset;
+	}
+	/**
+	 * @param headerOffset
+	 * 		The position in the stream where the header of the image starts.
+	 */
+	public void setHeaderOffset(long headerOffset) {
+		this.headerOffset = headerOffset;
+	}
+	/**
+	 * @return 
+	 * 		The position in the stream where the image data starts. For
+	 * 		plain images this is the position of the first sample.
+	 */
+	public long getRasterOffset() {
+		return rasterOffset;
+	}
+	/**
+	 * @param rasterOffset
+	 * 		The position in the stream where the image data starts.
+	 */
+	public void setRasterOffset(long rasterOffset) {
+		this.rasterOffset = rasterOffset;
+	}
+	/**
+	 * Get a lookup table to scale samples to 8 bit values. The table has
+	 * an entry for every value a byte can hold and for every value up to 
+	 * maxColor, values over maxColor are mapped to 255. The table is built 
+	 * on first use and cached on the header.
+	 * @return 
+	 * 		The lookup table, or null if samples do not need scaling (the
+	 * 		maxColor is 255) or the maxColor is larger than 65535.
+	 */
+	public byte[] getSampleTable() {
+		if (maxColor == 255 || maxColor > 65535) {
+			return null;
+		}
+		if (null == sampleTable) {
+			byte[] table = new byte[Math.max(256, maxColor + 1)];
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (byte) (Math.min(i, maxColor) * 255 / maxColor);
+			}
+			sampleTable = table;
+		}
+		return sampleTable;
+	}
+	/**
+	 * Get a lookup table to scale samples of wide images to 16 bit values.
+	 * The table has an entry for every value two bytes can hold, values
+	 * over maxColor are mapped to 65535. The table is built on first use
+	 * and cached on the header.
+	 * @return 
+	 * 		The lookup table, or null if samples do not need scaling (the
+	 * 		maxColor is 65535).
+	 */
+	public short[] getWideSampleTable() {
+		if (maxColor == 65535) {
+			return null;
+		}
+		if (null == wideSampleTable) {
+			short[] table = new short[65536];
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (short) ((long) Math.min(i, maxColor) * 65535
+						/ maxColor);
+			}
+			wideSampleTable = table;
+		}
+		return wideSampleTable;
 	}
 	
 	/**
@@ -90,5 +213,59 @@ class NetpbmHeader {
 		return NetpbmSignature.P3 == signature  
 				|| NetpbmSignature.P6 == signature;
 	}
+	/**
+	 * @return
+	 * 		True if the image data is stored in binary (raw) format.
+	 */
+	public boolean isRaw() {
+		return NetpbmSignature.P4 == signature  
+				|| NetpbmSignature.P5 == signature  
+				|| NetpbmSignature.P6 == signature  
+				|| NetpbmSignature.P7 == signature;
+	}
+	/**
+	 * @return
+	 * 		True if the samples of the image do not fit in a byte, i.e. the
+	 * 		maxColor value is in the range 256 to 65535. Larger values are
+	 * 		not allowed by the specification, plain images using these are
+	 * 		scaled to 8 bit samples.
+	 */
+	public boolean isWide() {
+		return maxColor > 255 && maxColor <= 65535;
+	}
+	/**
+	 * @return
+	 * 		The number of bytes a single image row takes in the raster of a
+	 * 		raw image. Since rows are of a fixed size in raw images, the
+	 * 		position of any row in the raster can be computed from this.
+	 * 		Note that samples take two bytes if the maxColor exceeds 255.
+	 */
+	public int getBytesPerRow() {
+		if (isBitmap()) {
+			return (width + 7) / 8;
+		}
+		int bytesPerSample = isWide() ? 2 : 1;
+		return width * depth * bytesPerSample;
+	}
+	/**
+	 * @return
+	 * 		The number of bytes the raster of a raw image takes.
+	 */
+	public long getRasterLength() {
+		return (long) getBytesPerRow() * height;
+	}
+	/**
+	 * @return
+	 * 		The least number of bytes the raster of the image can take: the
+	 * 		raster length of raw images, or a character per sample (and white
+	 * 		space between the samples, except in bitmaps) for plain images.
+	 */
+	public long getMinRasterLength() {
+		if (isRaw()) {
+			return getRasterLength();
+		}
+		long samples = (long) width * height * depth;
+		return isBitmap() ? samples : 2 * samples - 1;
+	}
 	
 }
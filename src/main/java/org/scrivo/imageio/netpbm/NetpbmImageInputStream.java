@@ -2,6 +2,7 @@ package org.scrivo.imageio.netpbm;
 
 import java.io.IOException;
 
+import javax.imageio.IIOException;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageInputStreamImpl;
 
@@ -10,9 +11,9 @@ import javax.imageio.stream.ImageInputStreamImpl;
  * access to the image stream for reading the binary content data and text
  * access for reading numbers and characters from the image stream.
  * 
- * For reading text data from the stream methods the readStringToken and
- * readCharacterToken were added. One to read numbers (as string) from the
- * stream and the other to read bits (as chars).
+ * For reading text data from the stream methods the readStringToken,
+ * readIntToken and readCharacterToken were added. The first two read numbers
+ * (as string or int) from the stream and the other reads bits (as chars).
  * 
  * Note: an earlier implementation used ImageInputStreamImpl.readLine to parse
  * character data from the stream, for whatever reason this proved to be
@@ -20,22 +21,36 @@ import javax.imageio.stream.ImageInputStreamImpl;
  */
 class NetpbmImageInputStream extends ImageInputStreamImpl {
 
-	/** Size of the read buffer. */
-	private static final int BUF_SIZE = 2048;
+	/**
+	 * System property to set the initial size of the read buffer, f.i. to use
+	 * larger reads on network file systems.
+	 */
+	static final String BUFFER_SIZE_PROPERTY = "org.scrivo.imageio.netpbm.bufferSize";
+	/** Smallest size of the read buffer. */
+	static final int MIN_BUFFER_SIZE = 16;
+	/** Largest size of the read buffer. */
+	static final int MAX_BUFFER_SIZE = 1 << 20;
+	/** Initial size of the read buffer. */
+	static final int DEFAULT_BUFFER_SIZE = clampBufferSize(
+			Integer.getInteger(BUFFER_SIZE_PROPERTY, 2048));
 	/** Constant for indicate end-of-line. */
 	private static final int EOF = -1;
 	/** Constant for the stream comment character. */
 	private static final int COMMENT = '#';
 
+	/** The size of the read buffer to use for the next buffer fill. */
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
 	/** The read buffer. */
-	private byte[] buffer = new byte[BUF_SIZE];
+	private byte[] buffer = new byte[bufferSize];
+	/** The position of the first byte in the buffer in the stream. */
+	private long bufferStart = 0;
 	/** The current write position in the buffer. */
 	private int pos = 0;
 	/** The last byte read. */
 	private int tokenChr = EOF;
 	/**
-	 * Upper bound (exclusive) of the writeable part of the buffer (=BUF_SIZE or
-	 * smaller if less than BUF_SIZE bytes were read from the stream).
+	 * Upper bound (exclusive) of the writeable part of the buffer (=the buffer
+	 * length or smaller if less bytes were read from the stream).
 	 */
 	private int maxPos = 0;
 
@@ -72,15 +87,89 @@ class NetpbmImageInputStream extends ImageInputStreamImpl {
 		this.is = is;
 	}
 
+	/**
+	 * Construct a NetpbmImageInputStream using an ImageInputStream and a
+	 * read buffer of the given size, f.i. a small one to read headers only.
+	 * 
+	 * @param is         The image input stream to use.
+	 * @param bufferSize The size of the read buffer.
+	 */
+	NetpbmImageInputStream(final ImageInputStream is, final int bufferSize) {
+		this.is = is;
+		this.bufferSize = clampBufferSize(bufferSize);
+		this.buffer = new byte[this.bufferSize];
+	}
+
+	/**
+	 * Start reading from another ImageInputStream, keeping the read buffer.
+	 * This allows a reader to use a single NetpbmImageInputStream for all
+	 * its inputs.
+	 * 
+	 * @param is The image input stream to use, or null to release the
+	 *           current stream.
+	 */
+	void setInput(final ImageInputStream is) {
+		this.is = is;
+		pos = 0;
+		maxPos = 0;
+		tokenChr = EOF;
+		streamPos = 0;
+		flushedPos = 0;
+		bitOffset = 0;
+	}
+
+	/**
+	 * Limit a buffer size to the supported range.
+	 * 
+	 * @param size The requested buffer size.
+	 * @return The size to use.
+	 */
+	static int clampBufferSize(final long size) {
+		return (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, size));
+	}
+
+	/**
+	 * @return The size of the read buffer.
+	 */
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Set the size of the read buffer. Since the buffer might hold unread data
+	 * the new size takes effect when the buffer is filled the next time.
+	 * 
+	 * @param size The new size of the read buffer, which is limited to the
+	 *             range MIN_BUFFER_SIZE to MAX_BUFFER_SIZE.
+	 */
+	void setBufferSize(final long size) {
+		bufferSize = clampBufferSize(size);
+	}
+
+	/**
+	 * Fill the (empty) read buffer from the underlying stream, resizing the
+	 * buffer first if another size was set.
+	 * 
+	 * @return The number of bytes read, or EOF at the end of the file.
+	 * @throws IOException
+	 */
+	private int fill() throws IOException {
+		if (buffer.length != bufferSize) {
+			buffer = new byte[bufferSize];
+		}
+		bufferStart = is.getStreamPosition();
+		// maxPos will be input buffer length unless there wasn't
+		// sufficient data in the stream (or eof).
+		maxPos = is.read(buffer);
+		return maxPos;
+	}
+
 	@Override
 	public int read() throws IOException {
 		// Position 0 indicates an empty input buffer, so fill it up.
 		if (pos == 0) {
-			// maxPos will be input buffer length unless there wasn't
-			// sufficient data in the stream (or eof).
-			maxPos = is.read(buffer);
 			// Bail out of were at the end of the file.
-			if (maxPos < 0) {
+			if (fill() < 0) {
 				return EOF;
 			}
 		}
@@ -89,53 +178,257 @@ class NetpbmImageInputStream extends ImageInputStreamImpl {
 		// ... increase the position ...
 		pos++;
 		// ... and set it to zero if we went over the upper bound.
-		if (pos >= maxPos || pos >= BUF_SIZE) {
+		if (pos >= maxPos) {
 			pos = 0;
 		}
 		// Return what we have read.
 		return res;
 	}
 
+	/**
+	 * Read bytes into an array. Unlike most streams this method only returns
+	 * less than len bytes at the end of the file. The bytes available in the
+	 * read buffer are taken first, large requests are then read straight from
+	 * the underlying stream, so long rows of raw images are not copied through
+	 * the buffer.
+	 * 
+	 * @return The number of bytes read, or EOF if the end of the file was
+	 *         reached before any byte was read.
+	 */
 	@Override
 	public int read(final byte[] b, final int off, final int len)
 			throws IOException {
-		// Position 0 indicates an empty input buffer, so fill it up.
-		if (pos == 0) {
-			// maxPos will be input buffer length unless there wasn't
-			// sufficient data in the stream (or eof).
-			maxPos = is.read(buffer);
-			// Bail out of were at the end of the file (ends recursion).
-			if (maxPos < 0) {
-				return EOF;
+		if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+			throw new IndexOutOfBoundsException(
+					"off < 0 || len < 0 || off + len > b.length");
+		}
+		if (len == 0) {
+			return 0;
+		}
+		int numRead = 0;
+		// Take the bytes that are available in the input buffer first
+		// (position 0 indicates an empty buffer).
+		if (pos != 0) {
+			numRead = Math.min(len, maxPos - pos);
+			System.arraycopy(buffer, pos, b, off, numRead);
+			pos += numRead;
+			if (pos >= maxPos) {
+				pos = 0;
+			}
+		}
+		// The buffer is empty now if we need more. Keep reading until we have
+		// all we need, the underlying stream might return less at a time.
+		while (numRead < len) {
+			int needed = len - numRead;
+			if (needed >= bufferSize) {
+				// Read large blocks straight into the output array ...
+				int n = is.read(b, off + numRead, needed);
+				if (n <= 0) {
+					break;
+				}
+				numRead += n;
+			} else {
+				// ... and small ones through the buffer, keeping what's left.
+				if (fill() <= 0) {
+					break;
+				}
+				int n = Math.min(needed, maxPos);
+				System.arraycopy(buffer, 0, b, off + numRead, n);
+				pos = n < maxPos ? n : 0;
+				numRead += n;
+			}
+		}
+		return numRead == 0 ? EOF : numRead;
+	}
+
+	/**
+	 * Read big-endian two byte samples from the stream. The samples are
+	 * decoded straight from the read buffer.
+	 * 
+	 * @param s   The array to store the samples in.
+	 * @param len The number of samples to read.
+	 * @return The number of samples read, which is less than len only if the
+	 *         end of the file was reached.
+	 * @throws IOException
+	 */
+	public int readShorts(final short[] s, final int len) throws IOException {
+		int n = 0;
+		while (n < len) {
+			// Position 0 indicates an empty input buffer, so fill it up.
+			if (pos == 0) {
+				if (fill() < 0) {
+					return n;
+				}
+			}
+			// Decode all complete samples available in the buffer ...
+			while (n < len && pos + 1 < maxPos) {
+				s[n++] = (short) (((buffer[pos] & 0xff) << 8)
+						| (buffer[pos + 1] & 0xff));
+				pos += 2;
+			}
+			if (pos + 1 == maxPos && n < len) {
+				// ... a sample that straddles the end of the buffer, get the
+				// second byte from the next buffer fill ...
+				int hi = buffer[pos] & 0xff;
+				pos = 0;
+				int lo = read();
+				if (EOF == lo) {
+					return n;
+				}
+				s[n++] = (short) ((hi << 8) | lo);
+			} else if (pos >= maxPos) {
+				// ... or just mark the buffer as empty when exhausted.
+				pos = 0;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Read the pixels of a row of a raw bitmap from the stream. The bits,
+	 * packed 8 pixels to a byte, are unpacked straight from the read buffer
+	 * into one byte per pixel, see NetpbmUtil.unpackBits.
+	 * 
+	 * @param b The array to store the pixels of the row in.
+	 * @return The number of bytes of packed bits read, which is less than
+	 *         needed for the row only if the end of the file was reached.
+	 * @throws IOException
+	 */
+	public int readBits(final byte[] b) throws IOException {
+		int len = (b.length + 7) / 8;
+		int n = 0;
+		while (n < len) {
+			// Position 0 indicates an empty input buffer, so fill it up.
+			if (pos == 0 && fill() <= 0) {
+				return n;
+			}
+			int count = Math.min(len - n, maxPos - pos);
+			NetpbmUtil.unpackBits(buffer, pos, count, b, n << 3);
+			pos += count;
+			if (pos >= maxPos) {
+				pos = 0;
 			}
+			n += count;
 		}
-		// The number of bytes available in the input buffer.
-		int available = maxPos - pos;
-		// The number of bytes needed too fill the output buffer.
-		int needed = len - off;
-		// If we need less bytes than there are available ...
-		if (needed <= available) {
-			// ... (*) copy what we need, ...
-			System.arraycopy(buffer, pos, b, off, needed);
-			// ... set new current pos (note: will not go over upper bound) ...
-			pos += needed;
-			// ... and return the no of bytes added to buffer (ends recursion).
-			return needed;
-		}
-		// Else we need more, so copy what is available ...
-		System.arraycopy(buffer, pos, b, off, available);
-		// ... set new current pos to 0 to indicate that we need data again ...
+		return n;
+	}
+
+	/**
+	 * Get the length of the underlying stream.
+	 * 
+	 * @return The length of the stream, or -1 if it is unknown.
+	 */
+	@Override
+	public long length() {
+		try {
+			return is.length();
+		} catch (IOException e) {
+			return -1L;
+		}
+	}
+
+	@Override
+	public long getStreamPosition() throws IOException {
+		// Position 0 indicates an empty buffer, in which case we're at the
+		// position of the underlying stream.
+		streamPos = pos == 0 ? is.getStreamPosition() : bufferStart + pos;
+		return streamPos;
+	}
+
+	/**
+	 * Seek to a position in the stream. For reading tokens the position is
+	 * treated as if it is preceded by white space. Seeking to a position
+	 * within the read buffer only moves the position in the buffer, else the
+	 * buffer is discarded.
+	 * 
+	 * @throws IndexOutOfBoundsException If p is before the flushed position.
+	 */
+	@Override
+	public void seek(final long p) throws IOException {
+		checkClosed();
+		if (p < flushedPos) {
+			throw new IndexOutOfBoundsException("pos < flushedPos!");
+		}
+		// Position 0 indicates an empty buffer, so we can't move to the
+		// start of the buffer.
+		if (pos != 0 && p > bufferStart && p < bufferStart + maxPos) {
+			pos = (int) (p - bufferStart);
+		} else {
+			is.seek(p);
+			pos = 0;
+		}
+		streamPos = p;
+		bitOffset = 0;
+		tokenChr = ' ';
+	}
+
+	/**
+	 * Discard the data before the given position, in this stream and in the
+	 * underlying stream. This allows the underlying stream to release the
+	 * data it cached, f.i. when reading large images from a network stream.
+	 */
+	@Override
+	public void flushBefore(final long p) throws IOException {
+		super.flushBefore(p);
+		is.flushBefore(p);
+	}
+
+	@Override
+	public boolean isCached() {
+		return is.isCached();
+	}
+
+	@Override
+	public boolean isCachedMemory() {
+		return is.isCachedMemory();
+	}
+
+	@Override
+	public boolean isCachedFile() {
+		return is.isCachedFile();
+	}
+
+	@Override
+	public int skipBytes(final int n) throws IOException {
+		return (int) skipBytes((long) n);
+	}
+
+	@Override
+	public long skipBytes(final long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		// The number of bytes still available in the input buffer (position
+		// 0 indicates an empty buffer).
+		int available = pos == 0 ? 0 : maxPos - pos;
+		// If we can skip within the buffer just move the position ...
+		if (n < available) {
+			pos += (int) n;
+			return n;
+		}
+		// ... else discard the buffer and let the underlying stream skip
+		// the remainder.
 		pos = 0;
-		// ... and recurse into read again, which will read data from the
-		// stream again. So we'll be adding chunks of BUF_SIZE data to
-		// the output buffer until the input buffer holds more then we need
-		// (*) and recursion is stopped.
-		int numRead = read(b, off + available, len);
-		// We're done, return the sum of what we've read here (available) and
-		// what was read in the recursive calls (numBytes). EOF is a special
-		// case here: it returns a marker (-1) while actually 0 bytes were
-		// read, so we need to fix this.
-		return available + (numRead == EOF ? 0 : numRead);
+		return available + is.skipBytes(n - available);
+	}
+
+	/**
+	 * Read the magic number of a Netpbm image at the current position: the
+	 * character 'P' followed by a digit, which must be followed by white
+	 * space. Unlike readStringToken no objects are created.
+	 * 
+	 * @return The digit of the magic number, or EOF if there's no magic
+	 *         number at the current position.
+	 * @throws IOException
+	 */
+	public int readMagicNumber() throws IOException {
+		int p = read();
+		int digit = read();
+		tokenChr = read();
+		if (p != 'P' || digit < '0' || digit > '9' || !witeSpace(tokenChr)) {
+			return EOF;
+		}
+		return digit - '0';
 	}
 
 	/**
@@ -174,6 +467,121 @@ class NetpbmImageInputStream extends ImageInputStreamImpl {
 		return null;
 	}
 
+	/**
+	 * Gets the remainder of the current line as a token, f.i. the value of
+	 * a PAM header line. Leading and trailing white space is removed.
+	 * 
+	 * @return The remainder of the line (possibly an empty string).
+	 * @throws IOException
+	 */
+	public String readLineToken() throws IOException {
+		StringBuilder input = new StringBuilder();
+		// The white space character that ended the previous token is read
+		// already, if it was a line break there's nothing left on the line.
+		if (!lineBreak(tokenChr)) {
+			tokenChr = read();
+			while (EOF != tokenChr && !lineBreak(tokenChr)) {
+				input.append((char) tokenChr);
+				tokenChr = read();
+			}
+		}
+		return input.toString().trim();
+	}
+
+	/**
+	 * Gets the next numeric token from the stream. This method does the same as
+	 * Integer.parseInt(readStringToken()) but parses the digits directly from
+	 * the read buffer, so no objects are created while parsing.
+	 * 
+	 * @return The (non-negative) value of the next token in the stream, or EOF
+	 *         if we are at the end of the file.
+	 * @throws IOException
+	 *         If the token contains anything but digits or if its value does
+	 *         not fit in an int.
+	 */
+	public int readIntToken() throws IOException {
+		// EOF is also the initial value of tokenChr, in which case there is
+		// no character pending: treat that as white space so that we start
+		// reading.
+		if (EOF == tokenChr) {
+			tokenChr = ' ';
+		}
+		// Skip all whitespace first so that tokenChr holds the first
+		// character of the token.
+		if (EOF == skipWhiteSpaceAndComments()) {
+			return EOF;
+		}
+		int value = digit(tokenChr, 0);
+		while (true) {
+			// Position 0 indicates an empty input buffer, so fill it up.
+			if (pos == 0) {
+				// The token ends at the end of the file.
+				if (fill() < 0) {
+					tokenChr = EOF;
+					return value;
+				}
+			}
+			// Parse the digits that are available in the buffer until we
+			// encounter the end of the token.
+			int p = pos;
+			while (p < maxPos) {
+				int c = buffer[p++] & 0xff;
+				if (c >= '0' && c <= '9') {
+					value = digit(c, value);
+				} else {
+					pos = p < maxPos ? p : 0;
+					if (!witeSpace(c)) {
+						throw new IIOException(
+								"Bad character in numeric token: " + c);
+					}
+					// End of the token, there is white space in tokenChar.
+					tokenChr = c;
+					return value;
+				}
+			}
+			// Buffer exhausted, get more data.
+			pos = 0;
+		}
+	}
+
+	/**
+	 * Add a digit to the value of a numeric token.
+	 * 
+	 * @param c     The digit character.
+	 * @param value The value of the token so far.
+	 * @return The new value of the token.
+	 * @throws IIOException If c is not a digit or the value overflows.
+	 */
+	private static int digit(final int c, final int value)
+			throws IIOException {
+		int d = c - '0';
+		if (d < 0 || d > 9) {
+			throw new IIOException("Bad character in numeric token: " + c);
+		}
+		if (value > (Integer.MAX_VALUE - d) / 10) {
+			throw new IIOException("Numeric token out of range");
+		}
+		return value * 10 + d;
+	}
+
+	/**
+	 * Skip white space and comments up to the start of the next token.
+	 * 
+	 * @return The stream position of the next token, or EOF if there are no
+	 *         more tokens in the stream.
+	 * @throws IOException
+	 */
+	public long skipToToken() throws IOException {
+		if (EOF == tokenChr) {
+			tokenChr = ' ';
+		}
+		if (EOF == skipWhiteSpaceAndComments()) {
+			return EOF;
+		}
+		// The first character of the token was read already.
+		return getStreamPosition() - 1;
+	}
+
 	/**
 	 * Read a single character token from the stream. This method differs from
 	 * readStringToken in that the tokens do not necessarily need a whitespace
@@ -0,0 +1,96 @@
+package org.scrivo.imageio.netpbm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * NetpbmMappedRaster gives access to the rows of the raster of a raw image
+ * file by mapping the raster into memory. Since the raster of an image can be
+ * larger than a single mapping can hold, the raster is mapped in windows of
+ * whole rows, which are mapped as rows are requested.
+ */
+class NetpbmMappedRaster {
+
+	/** Maximum size of a window of the raster mapped into memory. */
+	private static final long MAX_WINDOW_SIZE = 1L << 28;
+	/** The data of rows beyond the end of the file. */
+	private static final ByteBuffer EMPTY_ROW = ByteBuffer.allocate(0);
+
+	/** The channel of the image file. */
+	private final FileChannel channel;
+	/** The position of the raster in the file. */
+	private final long rasterOffset;
+	/** The number of bytes of a row in the raster. */
+	private final int bytesPerRow;
+	/** The number of rows in a window. */
+	private final int windowRows;
+	/** The size of the file. */
+	private final long fileSize;
+
+	/** The mapped window, or null if nothing has been mapped yet. */
+	private MappedByteBuffer window = null;
+	/** The first row in the mapped window. */
+	private int windowStart = 0;
+
+	/**
+	 * Construct a NetpbmMappedRaster for a raw image in a file.
+	 *
+	 * @param channel The channel of the image file.
+	 * @param header  The header of the image.
+	 * @throws IOException
+	 */
+	NetpbmMappedRaster(FileChannel channel, NetpbmHeader header)
+			throws IOException {
+		this.channel = channel;
+		this.rasterOffset = header.getRasterOffset();
+		this.bytesPerRow = header.getBytesPerRow();
+		this.windowRows = (int) Math.max(1, Math.min(header.getHeight(),
+				MAX_WINDOW_SIZE / Math.max(1, bytesPerRow)));
+		this.fileSize = channel.size();
+	}
+
+	/**
+	 * Get the data of a row in the raster. The returned buffer is only valid
+	 * until the next call of this method.
+	 *
+	 * @param y The row to get.
+	 * @return A buffer positioned at the start of the row, of which the limit
+	 *         is set at the end of the row (or the end of the file if the file
+	 *         is truncated), or an empty buffer if the row lies beyond the
+	 *         end of the file.
+	 * @throws IOException
+	 */
+	ByteBuffer row(int y) throws IOException {
+		if (null == window || y < windowStart || y >= windowStart + windowRows) {
+			map(y);
+		}
+		long start = (long) (y - windowStart) * bytesPerRow;
+		if (null == window || start >= window.capacity()) {
+			return EMPTY_ROW;
+		}
+		window.clear();
+		window.position((int) start);
+		window.limit((int) Math.min(window.capacity(), start + bytesPerRow));
+		return window;
+	}
+
+	/**
+	 * Map the window that starts at the given row.
+	 *
+	 * @param y The first row of the window.
+	 * @throws IOException
+	 */
+	private void map(int y) throws IOException {
+		windowStart = y;
+		long position = rasterOffset + (long) y * bytesPerRow;
+		// Don't map beyond the end of the file.
+		long size = Math.min((long) windowRows * bytesPerRow,
+				fileSize - position);
+		window = size > 0
+				? channel.map(FileChannel.MapMode.READ_ONLY, position, size)
+				: null;
+	}
+
+}
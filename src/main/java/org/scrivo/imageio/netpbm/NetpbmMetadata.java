@@ -0,0 +1,157 @@
+package org.scrivo.imageio.netpbm;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.metadata.IIOMetadataNode;
+
+import org.w3c.dom.Node;
+
+/**
+ * The (read-only) metadata of a Netpbm image, in the native format (see
+ * PbmMetadataFormat) and the standard format.
+ */
+class NetpbmMetadata extends IIOMetadata {
+
+	/** The header of the image. */
+	private final NetpbmHeader header;
+	/** The comments in the header of the image. */
+	private final List<String> comments;
+
+	/**
+	 * Construct the metadata of an image.
+	 *
+	 * @param header   The header of the image.
+	 * @param comments The comments in the header.
+	 */
+	NetpbmMetadata(NetpbmHeader header, List<String> comments) {
+		super(true, PbmMetadataFormat.NATIVE_FORMAT_NAME,
+				PbmMetadataFormat.class.getName(), null, null);
+		this.header = header;
+		this.comments = Collections.unmodifiableList(comments);
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return true;
+	}
+
+	@Override
+	public Node getAsTree(String formatName) {
+		if (nativeMetadataFormatName.equals(formatName)) {
+			return getNativeTree();
+		}
+		if (IIOMetadataFormatImpl.standardMetadataFormatName
+				.equals(formatName)) {
+			return getStandardTree();
+		}
+		throw new IllegalArgumentException("Unsupported format: "
+				+ formatName);
+	}
+
+	private Node getNativeTree() {
+		IIOMetadataNode root = new IIOMetadataNode(nativeMetadataFormatName);
+		IIOMetadataNode node = new IIOMetadataNode("Header");
+		node.setAttribute("signature", header.getSignature().name());
+		node.setAttribute("width", Integer.toString(header.getWidth()));
+		node.setAttribute("height", Integer.toString(header.getHeight()));
+		node.setAttribute("depth", Integer.toString(header.getDepth()));
+		node.setAttribute("maxValue", Integer.toString(header.getMaxColor()));
+		if (null != header.getTupleType()) {
+			node.setAttribute("tupleType", header.getTupleType());
+		}
+		node.setAttribute("rasterOffset",
+				Long.toString(header.getRasterOffset()));
+		root.appendChild(node);
+		IIOMetadataNode commentsNode = new IIOMetadataNode("Comments");
+		for (String comment : comments) {
+			node = new IIOMetadataNode("Comment");
+			node.setAttribute("value", comment);
+			commentsNode.appendChild(node);
+		}
+		root.appendChild(commentsNode);
+		return root;
+	}
+
+	/**
+	 * The number of color channels, that is without the alpha channel.
+	 */
+	private int colorChannels() {
+		return header.hasAlpha() ? header.getDepth() - 1 : header.getDepth();
+	}
+
+	@Override
+	protected IIOMetadataNode getStandardChromaNode() {
+		IIOMetadataNode chroma = new IIOMetadataNode("Chroma");
+		IIOMetadataNode node = new IIOMetadataNode("ColorSpaceType");
+		node.setAttribute("name", colorChannels() >= 3 ? "RGB" : "GRAY");
+		chroma.appendChild(node);
+		node = new IIOMetadataNode("NumChannels");
+		node.setAttribute("value", Integer.toString(header.getDepth()));
+		chroma.appendChild(node);
+		node = new IIOMetadataNode("BlackIsZero");
+		node.setAttribute("value", "TRUE");
+		chroma.appendChild(node);
+		return chroma;
+	}
+
+	@Override
+	protected IIOMetadataNode getStandardDataNode() {
+		IIOMetadataNode data = new IIOMetadataNode("Data");
+		IIOMetadataNode node = new IIOMetadataNode("PlanarConfiguration");
+		node.setAttribute("value", "PixelInterleaved");
+		data.appendChild(node);
+		node = new IIOMetadataNode("SampleFormat");
+		node.setAttribute("value", "UnsignedIntegral");
+		data.appendChild(node);
+		int bits = header.isBitmap() ? 1 : header.isWide() ? 16 : 8;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < header.getDepth(); i++) {
+			sb.append(i == 0 ? "" : " ").append(bits);
+		}
+		node = new IIOMetadataNode("BitsPerSample");
+		node.setAttribute("value", sb.toString());
+		data.appendChild(node);
+		return data;
+	}
+
+	@Override
+	protected IIOMetadataNode getStandardTextNode() {
+		if (comments.isEmpty()) {
+			return null;
+		}
+		IIOMetadataNode text = new IIOMetadataNode("Text");
+		for (String comment : comments) {
+			IIOMetadataNode node = new IIOMetadataNode("TextEntry");
+			node.setAttribute("keyword", "comment");
+			node.setAttribute("value", comment);
+			text.appendChild(node);
+		}
+		return text;
+	}
+
+	@Override
+	protected IIOMetadataNode getStandardTransparencyNode() {
+		if (!header.hasAlpha()) {
+			return null;
+		}
+		IIOMetadataNode transparency = new IIOMetadataNode("Transparency");
+		IIOMetadataNode node = new IIOMetadataNode("Alpha");
+		node.setAttribute("value", "nonpremultiplied");
+		transparency.appendChild(node);
+		return transparency;
+	}
+
+	@Override
+	public void mergeTree(String formatName, Node root) {
+		throw new IllegalStateException("Metadata is read-only");
+	}
+
+	@Override
+	public void reset() {
+		throw new IllegalStateException("Metadata is read-only");
+	}
+
+}
@@ -15,5 +15,7 @@ enum NetpbmSignature {
 	/** Grayscale image with binary image data */
 	P5,
 	/** Color image with binary image data */
-	P6
+	P6,
+	/** Arbitrary (PAM) image with binary image data */
+	P7
 }
\ No newline at end of file
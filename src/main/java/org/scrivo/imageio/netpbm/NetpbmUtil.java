@@ -1,17 +1,46 @@
 package org.scrivo.imageio.netpbm;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.imageio.IIOException;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 
 /**
  * The NetpbmUtil class contains all methods to work with Netpbm image files.
  * It contains a method for reading the file header and a methods decoding
- * the image data contains in the files.
+ * the image data contains in the files, and their counterparts for writing
+ * headers and encoding image data.
  */
 class NetpbmUtil {
 	
+	/** The maximum length of a line of image data in plain files. */
+	static final int MAX_PLAIN_LINE = 70;
+
+	/**
+	 * Lookup table to unpack the bits of raw bitmaps: for every value of a
+	 * byte it holds the 8 pixels the bits of the byte expand to, starting at
+	 * index value * 8. Set bits (black) become 0 and cleared bits 255.
+	 */
+	private static final byte[] BIT_TABLE = new byte[256 * 8];
+
+	static {
+		for (int i=0; i<BIT_TABLE.length; i++) {
+			BIT_TABLE[i] = (byte) ((i >> 3 >> (7 - (i & 7)) & 0x01) == 1
+					? 0 : 255);
+		}
+	}
+
+	/** The signatures, indexed by the digit of their magic number - 1. */
+	private static final NetpbmSignature[] SIGNATURES =
+			NetpbmSignature.values();
+
 	private NetpbmUtil() {} 
 
 	/**
@@ -32,26 +61,53 @@ class NetpbmUtil {
 			if (stream == null) {
 				throw new IllegalStateException("No input stream");
 			}
+			header.setHeaderOffset(stream.getStreamPosition());
 			// Read the image signature.
-			String sigRead = stream.readStringToken();
-			for (NetpbmSignature sig: NetpbmSignature.values()) {
-				if (sigRead.startsWith(sig.toString())) {
-					header.setSignature(sig);
-					break;
+			int magic = stream.readMagicNumber();
+			if (magic < 1 || magic > SIGNATURES.length) {
+				throw new IIOException("Bad file signature!");
+			}
+			header.setSignature(SIGNATURES[magic - 1]);
+			if (NetpbmSignature.P7 == header.getSignature()) {
+				readPamHeader(stream, header);
+			} else {
+				// Get the image width and height.
+				header.setWidth(readHeaderValue(stream));
+				header.setHeight(readHeaderValue(stream));
+				header.setDepth(header.isPixmap() ? 3 : 1);
+				if (header.isBitmap()) {
+					// If the image is a bitmap the maxColor is limited to 1.
+					header.setMaxColor(1);
+				} else {
+					// Get the maxColor value (Grayscale and bitmap).
+					header.setMaxColor(readHeaderValue(stream));
 				}
 			}
-			if (null == header.getSignature()) {
-				throw new IIOException("Bad file signature!");
+			if (header.getMaxColor() < 1) {
+				throw new IIOException("Bad maxColor value");
+			}
+			// Samples of raw images take at most two bytes, plain images
+			// with larger values are scaled to 8 bit samples.
+			if (header.isRaw() && header.getMaxColor() > 65535) {
+				throw new IIOException("Bad maxColor value");
+			}
+			if (header.getWidth() < 1 || header.getHeight() < 1) {
+				throw new IIOException("Bad image size");
+			}
+			// The samples of a row must fit in an array.
+			if ((long) header.getWidth() * header.getDepth()
+					* (header.isWide() ? 2 : 1) > Integer.MAX_VALUE) {
+				throw new IIOException("Image too wide");
 			}
-			// Get the image width and height.
-			header.setWidth(Integer.parseInt(stream.readStringToken()));
-			header.setHeight(Integer.parseInt(stream.readStringToken()));
-			if (header.isBitmap()) {
-				// If the image is a bitmap the maxColor is limited to 1.
-				header.setMaxColor(1);
+			// Raw image data starts right after the single white space
+			// character that ends the header, plain image data might be
+			// preceded by more white space or comments.
+			if (header.isRaw()) {
+				header.setRasterOffset(stream.getStreamPosition());
 			} else {
-				// Get the maxColor value (Grayscale and bitmap).
-				header.setMaxColor(Integer.parseInt(stream.readStringToken()));
+				long offset = stream.skipToToken();
+				header.setRasterOffset(offset < 0 ? stream.getStreamPosition()
+						: offset);
 			}
 		} catch (Exception e) {
 			throw new IIOException("Error reading header", e);
@@ -59,6 +115,190 @@ class NetpbmUtil {
 		return header;
 	}
 
+	/**
+	 * Read the comments in the header of an image, which the header parser
+	 * skips. In PAM headers comments are lines that start with a '#', in
+	 * the headers of other images a '#' starts a comment anywhere. Comments
+	 * between the header and the raster of plain images are included.
+	 * @param stream
+	 * 		The stream from which to read the image.
+	 * @param header
+	 * 		The header of the image.
+	 * @return
+	 * 		The comments, without the '#' and leading white space.
+	 * @throws IOException
+	 */
+	static List<String> readComments(NetpbmImageInputStream stream,
+			NetpbmHeader header) throws IOException {
+		List<String> comments = new ArrayList<>();
+		boolean pam = NetpbmSignature.P7 == header.getSignature();
+		long length = header.getRasterOffset() - header.getHeaderOffset();
+		stream.seek(header.getHeaderOffset());
+		StringBuilder comment = null;
+		int prev = '\n';
+		for (long i=0; i<length; i++) {
+			int c = stream.read();
+			if (c < 0) {
+				break;
+			}
+			if (null != comment) {
+				if (c == '\n' || c == '\r') {
+					comments.add(comment.toString().trim());
+					comment = null;
+				} else {
+					comment.append((char) c);
+				}
+			} else if (c == '#' && (!pam || prev == '\n' || prev == '\r')) {
+				comment = new StringBuilder();
+			}
+			prev = c;
+		}
+		if (null != comment) {
+			comments.add(comment.toString().trim());
+		}
+		return comments;
+	}
+
+	/**
+	 * Read the remainder of a PAM header: lines with a keyword and a value,
+	 * terminated by a line with the keyword ENDHDR. 
+	 * @param stream
+	 * 		The stream from which to read the image.
+	 * @param header
+	 * 		The header to store the values in.
+	 * @throws IOException
+	 * 		If the header is incomplete or contains bad values.
+	 */
+	private static void readPamHeader(NetpbmImageInputStream stream,
+			NetpbmHeader header) throws IOException {
+		while (true) {
+			String key = stream.readStringToken();
+			if (null == key) {
+				throw new IIOException("Unexpected end of file");
+			}
+			switch (key) {
+			case "WIDTH":
+				header.setWidth(readHeaderValue(stream));
+				break;
+			case "HEIGHT":
+				header.setHeight(readHeaderValue(stream));
+				break;
+			case "DEPTH":
+				header.setDepth(readHeaderValue(stream));
+				break;
+			case "MAXVAL":
+				header.setMaxColor(readHeaderValue(stream));
+				break;
+			case "TUPLTYPE":
+				// Multiple tuple type lines are concatenated.
+				String tupleType = stream.readLineToken();
+				header.setTupleType(null == header.getTupleType() ? tupleType
+						: header.getTupleType() + " " + tupleType);
+				break;
+			case "ENDHDR":
+				if (header.getWidth() < 1 || header.getHeight() < 1
+						|| header.getDepth() < 1) {
+					throw new IIOException("Incomplete PAM header");
+				}
+				return;
+			default:
+				// Ignore header lines we don't know.
+				stream.readLineToken();
+			}
+		}
+	}
+
+	/**
+	 * Write the remainder of a PAM header.
+	 * @param sb
+	 * 		The buffer to write the header lines to.
+	 * @param header
+	 * 		The header of the image.
+	 */
+	private static void writePamHeader(StringBuilder sb, NetpbmHeader header) {
+		sb.append("WIDTH ").append(header.getWidth()).append('\n');
+		sb.append("HEIGHT ").append(header.getHeight()).append('\n');
+		sb.append("DEPTH ").append(header.getDepth()).append('\n');
+		sb.append("MAXVAL ").append(header.getMaxColor()).append('\n');
+		if (null != header.getTupleType()) {
+			sb.append("TUPLTYPE ").append(header.getTupleType()).append('\n');
+		}
+		sb.append("ENDHDR\n");
+	}
+
+	/**
+	 * Read a numeric value from the image header.
+	 * @param stream
+	 * 		The stream from which to read the image.
+	 * @return
+	 * 		The value read.
+	 * @throws IOException
+	 * 		If the value could not be read or the end of the file was reached.
+	 */
+	private static int readHeaderValue(NetpbmImageInputStream stream)
+			throws IOException {
+		int value = stream.readIntToken();
+		if (value < 0) {
+			throw new IIOException("Unexpected end of file");
+		}
+		return value;
+	}
+
+	/**
+	 * Skip the image data of an image, i.e. position the stream at the end
+	 * of the image's raster. For raw images the position is computed, for 
+	 * plain images the samples need to be read.
+	 * @param stream
+	 * 		The stream from which to read the image.
+	 * @param header
+	 * 		The header data of the image to skip.
+	 * @throws IOException
+	 */
+	static void skipRaster(NetpbmImageInputStream stream, NetpbmHeader header)
+			throws IOException {
+		if (header.isRaw()) {
+			stream.seek(header.getRasterOffset() + header.getRasterLength());
+			return;
+		}
+		stream.seek(header.getRasterOffset());
+		long numSamples = (long) header.getWidth() * header.getHeight()
+				* header.getDepth();
+		for (long i = 0; i < numSamples; i++) {
+			int token = header.isBitmap() ? stream.readCharacterToken()
+					: stream.readIntToken();
+			if (token < 0) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Skip an image row of a plain image in a (NetpbmImage)InputStream. The
+	 * samples of the row are tokenized only, they are not decoded or scaled.
+	 * @param stream
+	 * 		The stream from which to read the image.
+	 * @param header
+	 * 		The header data of the image we are trying to read.
+	 * @param lineNo
+	 * 		The number of the line we are trying to skip.
+	 * @throws IIOException
+	 */
+	static void skipRow(NetpbmImageInputStream stream, NetpbmHeader header,
+			int lineNo) throws IIOException {
+		int numSamples = header.getWidth() * header.getDepth();
+		try {
+			for (int i=0; i<numSamples; i++) {
+				int token = header.isBitmap() ? stream.readCharacterToken()
+						: stream.readIntToken();
+				if (token < 0) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			throw new IIOException("Error reading line " + lineNo, e);
+		}
+	}
+
 	/**
 	 * Read an image row of image data a (NetpbmImage)InputStream. Supposedly
 	 * the stream is pointed at the start of the bitmap data in the file or
@@ -71,32 +311,234 @@ class NetpbmUtil {
 	 * 		The buffer to store the output data (one bitmap line).
 	 * @param lineNo
 	 * 		The number of the line we are trying to read.
+	 * @return
+	 * 		False if the image data ended before the end of the row, the
+	 * 		missing samples are then 0.
 	 * @throws IIOException
 	 */
-	static void readRow(NetpbmImageInputStream stream, NetpbmHeader header, 
+	static boolean readRow(NetpbmImageInputStream stream, NetpbmHeader header, 
 			byte[] rowBuf, int lineNo) throws IIOException {
 		try {
 			switch (header.getSignature()) {
 			case P1:
-				readBitDataLine(stream, rowBuf);
-				break;
+				return readBitDataLine(stream, rowBuf);
 			case P2:
 			case P3:
-				readByteDataLine(stream, rowBuf, header.getMaxColor());
-				break;
+				return readByteDataLine(stream, rowBuf, header.getMaxColor(),
+						header.getSampleTable());
 			case P4:
-				readBitDataLineRaw(stream, rowBuf);
-				break;
+				return readBitDataLineRaw(stream, rowBuf);
+			default:
+				return readByteDataLineRaw(stream, rowBuf,
+						header.getSampleTable());
+			}
+		} catch (IOException e) {
+			throw new IIOException("Error reading line " + lineNo, e);
+		}
+	}
+
+	/**
+	 * Read an image row of image data with samples that take two bytes in
+	 * raw images (maxColor over 255) from a (NetpbmImage)InputStream. The
+	 * samples are scaled to the range of an unsigned short.
+	 * @param stream
+	 * 		The stream from which to read the image.
+	 * @param header
+	 * 		The header data of the image we are trying to read.
+	 * @param rowBuf
+	 * 		The buffer to store the output data (one bitmap line).
+	 * @param lineNo
+	 * 		The number of the line we are trying to read.
+	 * @return
+	 * 		False if the image data ended before the end of the row, the
+	 * 		missing samples are then 0.
+	 * @throws IIOException
+	 */
+	static boolean readRow(NetpbmImageInputStream stream, NetpbmHeader header, 
+			short[] rowBuf, int lineNo) throws IIOException {
+		try {
+			switch (header.getSignature()) {
+			case P2:
+			case P3:
+				return readShortDataLine(stream, rowBuf, header.getMaxColor(),
+						header.getWideSampleTable());
 			case P5:
 			case P6:
-				readByteDataLineRaw(stream, rowBuf, header.getMaxColor());
-				break;
+			case P7:
+				return readShortDataLineRaw(stream, rowBuf,
+						header.getWideSampleTable());
+			default:
+				throw new IIOException("Bitmaps do not have wide samples");
 			}
 		} catch (IOException e) {
 			throw new IIOException("Error reading line " + lineNo, e);
 		}
 	}
 
+	/**
+	 * Read an image row of a raw image from a buffer holding the raster data,
+	 * like a memory mapped image file. The buffer is positioned at the start
+	 * of the row and its limit is at the end of the row, or before that when
+	 * the image data is truncated. Samples missing from the buffer are 0, 
+	 * like bits missing from bitmaps (white).
+	 * @param buf
+	 * 		The buffer from which to read the row.
+	 * @param header
+	 * 		The header data of the image we are trying to read.
+	 * @param rowBuf
+	 * 		The buffer to store the output data (one bitmap line).
+	 * @return
+	 * 		False if the buffer ended before the end of the row.
+	 */
+	static boolean readRow(ByteBuffer buf, NetpbmHeader header,
+			byte[] rowBuf) {
+		if (header.isBitmap()) {
+			int len = (rowBuf.length + 7) / 8;
+			int numRead = Math.min(buf.remaining(), len);
+			int p = buf.position();
+			for (int i=0; i<numRead; i++) {
+				unpackBits(buf.get(p + i), rowBuf, i << 3);
+			}
+			return fillBits(rowBuf, numRead, len);
+		}
+		int numRead = Math.min(buf.remaining(), rowBuf.length);
+		buf.get(rowBuf, 0, numRead);
+		byte[] sampleTable = header.getSampleTable();
+		if (null != sampleTable) {
+			for (int i=0; i<numRead; i++) {
+				rowBuf[i] = sampleTable[rowBuf[i] & 0xff];
+			}
+		}
+		return fill(rowBuf, numRead);
+	}
+
+	/**
+	 * Read an image row of a raw image with two byte samples from a buffer
+	 * holding the raster data, see readRow(ByteBuffer, NetpbmHeader, byte[]).
+	 * @param buf
+	 * 		The buffer from which to read the row.
+	 * @param header
+	 * 		The header data of the image we are trying to read.
+	 * @param rowBuf
+	 * 		The buffer to store the output data (one bitmap line).
+	 * @return
+	 * 		False if the buffer ended before the end of the row.
+	 */
+	static boolean readRow(ByteBuffer buf, NetpbmHeader header,
+			short[] rowBuf) {
+		// Samples are big-endian, the default byte order of buffers.
+		ShortBuffer shorts = buf.asShortBuffer();
+		int numRead = Math.min(shorts.remaining(), rowBuf.length);
+		shorts.get(rowBuf, 0, numRead);
+		short[] sampleTable = header.getWideSampleTable();
+		if (null != sampleTable) {
+			for (int i=0; i<numRead; i++) {
+				rowBuf[i] = sampleTable[rowBuf[i] & 0xffff];
+			}
+		}
+		return fill(rowBuf, numRead);
+	}
+
+	/**
+	 * Read the packed bits of an image row of a raw bitmap image (P4). The 
+	 * bits are inverted, so 0 is black and 1 is white like in images of type
+	 * TYPE_BYTE_BINARY.
+	 * @param stream
+	 * 		The stream from which to read the image.
+	 * @param rowBuf
+	 * 		The buffer to store the output data (one packed bitmap line).
+	 * @param lineNo
+	 * 		The number of the line we are trying to read.
+	 * @return
+	 * 		False if the image data ended before the end of the row, the
+	 * 		missing bits are then 0 (white).
+	 * @throws IIOException
+	 */
+	static boolean readPackedRow(NetpbmImageInputStream stream, byte[] rowBuf,
+			int lineNo) throws IIOException {
+		try {
+			int numRead = Math.max(0, stream.read(rowBuf));
+			invertBits(rowBuf, numRead);
+			return fill(rowBuf, numRead, (byte) 0xff);
+		} catch (IOException e) {
+			throw new IIOException("Error reading line " + lineNo, e);
+		}
+	}
+
+	/**
+	 * Read the packed bits of an image row of a raw bitmap image (P4) from a
+	 * buffer holding the raster data, see readPackedRow(NetpbmImageInputStream,
+	 * byte[], int) and readRow(ByteBuffer, NetpbmHeader, byte[]).
+	 * @param buf
+	 * 		The buffer from which to read the row.
+	 * @param rowBuf
+	 * 		The buffer to store the output data (one packed bitmap line).
+	 * @return
+	 * 		False if the buffer ended before the end of the row.
+	 */
+	static boolean readPackedRow(ByteBuffer buf, byte[] rowBuf) {
+		int numRead = Math.min(buf.remaining(), rowBuf.length);
+		buf.get(rowBuf, 0, numRead);
+		invertBits(rowBuf, numRead);
+		return fill(rowBuf, numRead, (byte) 0xff);
+	}
+
+	private static void invertBits(byte[] rowBuf, int len) {
+		for (int i=0; i<len; i++) {
+			rowBuf[i] = (byte) ~rowBuf[i];
+		}
+	}
+
+	/**
+	 * Set the samples of a row that were not read to 0, so the samples
+	 * missing from truncated image data don't depend on earlier rows.
+	 * @param rowBuf
+	 * 		The row.
+	 * @param numRead
+	 * 		The number of samples that were read.
+	 * @return
+	 * 		True if the whole row was read.
+	 */
+	private static boolean fill(byte[] rowBuf, int numRead) {
+		return fill(rowBuf, numRead, (byte) 0);
+	}
+
+	private static boolean fill(byte[] rowBuf, int numRead, byte value) {
+		if (numRead >= rowBuf.length) {
+			return true;
+		}
+		Arrays.fill(rowBuf, numRead, rowBuf.length, value);
+		return false;
+	}
+
+	private static boolean fill(short[] rowBuf, int numRead) {
+		if (numRead >= rowBuf.length) {
+			return true;
+		}
+		Arrays.fill(rowBuf, numRead, rowBuf.length, (short) 0);
+		return false;
+	}
+
+	/**
+	 * Set the pixels of a bitmap row of which the bits were not read to 
+	 * white, the color of a 0 bit.
+	 * @param rowBuf
+	 * 		The row (one byte per pixel).
+	 * @param numRead
+	 * 		The number of bytes of packed bits that were read.
+	 * @param len
+	 * 		The number of bytes of packed bits of the row.
+	 * @return
+	 * 		True if the whole row was read.
+	 */
+	private static boolean fillBits(byte[] rowBuf, int numRead, int len) {
+		if (numRead >= len) {
+			return true;
+		}
+		Arrays.fill(rowBuf, numRead << 3, rowBuf.length, (byte) 255);
+		return false;
+	}
+
 	/**
 	 * Read plain text bits ("1011 1100") from the stream into an image
 	 * row. Note that the colors are inverted: '0' becomes -1 (255, white)
@@ -105,39 +547,82 @@ class NetpbmUtil {
 	 * 		The stream from which to read the image.
 	 * @param rowBuf
 	 * 		The buffer to store the output data (one bitmap line).
+	 * @return
+	 * 		False if the end of the file was reached before the end of the
+	 * 		row, the missing pixels are then white.
 	 * @throws IOException
 	 */
-	static void readBitDataLine(NetpbmImageInputStream stream, byte[] rowBuf) 
-			throws IOException {
+	static boolean readBitDataLine(NetpbmImageInputStream stream,
+			byte[] rowBuf) throws IOException {
 		for (int i=0; i<rowBuf.length; i++) {
 			int wBit = stream.readCharacterToken();
-			if (-1 != wBit) {
-				rowBuf[i] = (byte)(wBit - '1');
+			if (-1 == wBit) {
+				Arrays.fill(rowBuf, i, rowBuf.length, (byte) 255);
+				return false;
 			}
+			rowBuf[i] = (byte)(wBit - '1');
 		}
+		return true;
 	}
 
 	/**
 	 * Read binary bitmap image date into an image row. Note that the image
 	 * data is stored in bits, not bytes, i.e. each byte holds the data for
-	 * 8 pixels. 
+	 * 8 pixels. The bits are unpacked straight from the read buffer of the
+	 * stream.
 	 * @param stream
 	 * 		The stream from which to read the image.
 	 * @param rowBuf
 	 * 		The buffer to store the output data (one bitmap line).
+	 * @return
+	 * 		False if the end of the file was reached before the end of the
+	 * 		row, the missing pixels are then white.
 	 * @throws IOException
 	 */
-	static void readBitDataLineRaw(ImageInputStream stream, byte[] rowBuf) 
-			throws IOException {
-		byte[] buff = new byte[(rowBuf.length+7)/8];
-		int numRead = stream.read(buff);
-		for (int i=0; i<rowBuf.length; i+=8) {
-			for (int j=0; j<8 && j+i<rowBuf.length && i+j<numRead*8; j++) {
-				rowBuf[j+i] = (buff[i/8] >> (7-j) & 0x01) == 1 ? 0 : (byte)255;
+	static boolean readBitDataLineRaw(NetpbmImageInputStream stream,
+			byte[] rowBuf) throws IOException {
+		return fillBits(rowBuf, stream.readBits(rowBuf),
+				(rowBuf.length + 7) / 8);
+	}
+
+	/**
+	 * Unpack the bits of raw bitmap data into pixels of one byte each, see
+	 * BIT_TABLE. Pixels beyond the end of the row are ignored.
+	 * @param src
+	 * 		The array holding the packed bits.
+	 * @param srcPos
+	 * 		The position of the first byte to unpack.
+	 * @param numBytes
+	 * 		The number of bytes to unpack.
+	 * @param rowBuf
+	 * 		The buffer to store the output data (one bitmap line).
+	 * @param dstPos
+	 * 		The position of the pixel of the first bit in rowBuf.
+	 */
+	static void unpackBits(byte[] src, int srcPos, int numBytes,
+			byte[] rowBuf, int dstPos) {
+		for (int i=0; i<numBytes; i++) {
+			unpackBits(src[srcPos + i], rowBuf, dstPos + (i << 3));
+		}
+	}
+
+	/**
+	 * Unpack the bits of a single byte of raw bitmap data, see unpackBits.
+	 */
+	private static void unpackBits(byte bits, byte[] rowBuf, int dstPos) {
+		int t = (bits & 0xff) << 3;
+		if (dstPos + 8 <= rowBuf.length) {
+			for (int j=0; j<8; j++) {
+				rowBuf[dstPos + j] = BIT_TABLE[t + j];
+			}
+		} else {
+			// The last byte of a row holds padding bits.
+			for (int j=0; dstPos + j<rowBuf.length; j++) {
+				rowBuf[dstPos + j] = BIT_TABLE[t + j];
 			}
 		}
 	}
-	
+
 	/**
 	 * Read string tokens (grayscale values or RGB tokens) from the stream into an
 	 * image row.
@@ -148,18 +633,35 @@ class NetpbmUtil {
 	 * 		The buffer to store the output data (one bitmap line).
 	 * @param maxColorValue
 	 * 		The maximum color value supported by the image.
+	 * @param sampleTable
+	 * 		Lookup table for scaling the samples (see 
+	 * 		NetpbmHeader.getSampleTable), or null.
+	 * @return
+	 * 		False if the end of the file was reached before the end of the
+	 * 		row, the missing samples are then 0.
 	 * @throws IOException
 	 */
-	static void readByteDataLine(NetpbmImageInputStream stream, byte[] rowBuf, 
-			int maxColorValue) throws IOException {
+	static boolean readByteDataLine(NetpbmImageInputStream stream,
+			byte[] rowBuf, int maxColorValue, byte[] sampleTable)
+			throws IOException {
 		for (int i=0; i<rowBuf.length; i++) {
-			String wBit = stream.readStringToken();
-			if (null == wBit) {
-				return;
+			int col = stream.readIntToken();
+			if (col < 0) {
+				return fill(rowBuf, i);
+			}
+			if (col > maxColorValue) {
+				col = maxColorValue;
+			}
+			if (null != sampleTable) {
+				rowBuf[i] = sampleTable[col];
+			} else if (maxColorValue == 255) {
+				rowBuf[i] = (byte) col;
+			} else {
+				// Out of spec maxColor, too large for a lookup table.
+				rowBuf[i] = (byte) ((long) col * 255 / maxColorValue);
 			}
-			int col = Integer.parseInt(wBit);
-			rowBuf[i] = (byte)(col * 255 / maxColorValue);
 		}
+		return true;
 	}
 	
 	/**
@@ -168,15 +670,236 @@ class NetpbmUtil {
 	 * 		The stream from which to read the image.
 	 * @param rowBuf
 	 * 		The buffer to store the output data (one bitmap line).
+	 * @param sampleTable
+	 * 		Lookup table for scaling the samples (see 
+	 * 		NetpbmHeader.getSampleTable), or null if the samples can be used
+	 * 		as they are.
+	 * @return
+	 * 		False if the end of the file was reached before the end of the
+	 * 		row, the missing samples are then 0.
+	 * @throws IOException
+	 */
+	static boolean readByteDataLineRaw(ImageInputStream stream,
+			byte[] rowBuf, byte[] sampleTable) throws IOException {
+		int numRead = Math.max(0, stream.read(rowBuf));
+		if (null != sampleTable) {
+			for (int i=0; i<numRead; i++) {
+				rowBuf[i] = sampleTable[rowBuf[i] & 0xff];
+			}
+		}
+		return fill(rowBuf, numRead);
+	}
+
+	/**
+	 * Read string tokens (grayscale values or RGB tokens) from the stream into
+	 * an image row with 16 bit samples.
+	 * 
+	 * @param stream
+	 * 		The stream from which to read the image.
+	 * @param rowBuf
+	 * 		The buffer to store the output data (one bitmap line).
 	 * @param maxColorValue
 	 * 		The maximum color value supported by the image.
+	 * @param sampleTable
+	 * 		Lookup table for scaling the samples (see 
+	 * 		NetpbmHeader.getWideSampleTable), or null.
+	 * @return
+	 * 		False if the end of the file was reached before the end of the
+	 * 		row, the missing samples are then 0.
+	 * @throws IOException
+	 */
+	static boolean readShortDataLine(NetpbmImageInputStream stream,
+			short[] rowBuf, int maxColorValue, short[] sampleTable)
+			throws IOException {
+		for (int i=0; i<rowBuf.length; i++) {
+			int col = stream.readIntToken();
+			if (col < 0) {
+				return fill(rowBuf, i);
+			}
+			if (col > maxColorValue) {
+				col = maxColorValue;
+			}
+			rowBuf[i] = null != sampleTable ? sampleTable[col] : (short) col;
+		}
+		return true;
+	}
+
+	/**
+	 * Read binary image data (grayscale or RGB triplets) with big-endian two
+	 * byte samples into an image row with 16 bit samples.
+	 * @param stream
+	 * 		The stream from which to read the image.
+	 * @param rowBuf
+	 * 		The buffer to store the output data (one bitmap line).
+	 * @param sampleTable
+	 * 		Lookup table for scaling the samples (see 
+	 * 		NetpbmHeader.getWideSampleTable), or null if the samples can be
+	 * 		used as they are.
+	 * @return
+	 * 		False if the end of the file was reached before the end of the
+	 * 		row, the missing samples are then 0.
+	 * @throws IOException
+	 */
+	static boolean readShortDataLineRaw(NetpbmImageInputStream stream,
+			short[] rowBuf, short[] sampleTable) throws IOException {
+		int numRead = stream.readShorts(rowBuf, rowBuf.length);
+		if (null != sampleTable) {
+			for (int i=0; i<numRead; i++) {
+				rowBuf[i] = sampleTable[rowBuf[i] & 0xffff];
+			}
+		}
+		return fill(rowBuf, numRead);
+	}
+
+	/**
+	 * Write a Netpbm image header to an ImageOutputStream.
+	 * @param stream
+	 * 		The stream to write the header to.
+	 * @param header
+	 * 		The header of the image.
+	 * @throws IOException
+	 */
+	static void writeHeader(ImageOutputStream stream, NetpbmHeader header)
+			throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(header.getSignature()).append('\n');
+		if (NetpbmSignature.P7 == header.getSignature()) {
+			writePamHeader(sb, header);
+		} else {
+			sb.append(header.getWidth()).append(' ')
+					.append(header.getHeight()).append('\n');
+			if (!header.isBitmap()) {
+				sb.append(header.getMaxColor()).append('\n');
+			}
+		}
+		stream.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Write an image row to an ImageOutputStream. The samples need to be
+	 * scaled to the maxColor of the image already. For bitmaps the samples
+	 * are bits as stored in the file, i.e. 1 is black.
+	 * @param stream
+	 * 		The stream to write the row to.
+	 * @param header
+	 * 		The header of the image we are writing.
+	 * @param samples
+	 * 		The samples of the row (width * number of bands).
+	 * @param buf
+	 * 		Scratch buffer for encoding the row, at least getBytesPerRow()
+	 * 		bytes for raw images or MAX_PLAIN_LINE + 1 bytes for plain
+	 * 		images.
 	 * @throws IOException
 	 */
-	static void readByteDataLineRaw(ImageInputStream stream, byte[] rowBuf, 
-			int maxColorValue) throws IOException {
-		int numRead = stream.read(rowBuf);
-		for (int i=0; i<rowBuf.length && i < numRead; i++) {
-			rowBuf[i] = (byte) (rowBuf[i] * 255 / maxColorValue);
+	static void writeRow(ImageOutputStream stream, NetpbmHeader header,
+			int[] samples, byte[] buf) throws IOException {
+		int count = header.getWidth() * header.getDepth();
+		switch (header.getSignature()) {
+		case P1:
+			writeBitDataLine(stream, samples, count, buf);
+			break;
+		case P2:
+		case P3:
+			writeByteDataLine(stream, samples, count, buf);
+			break;
+		case P4:
+			writeBitDataLineRaw(stream, samples, count, buf);
+			break;
+		case P5:
+		case P6:
+		case P7:
+			writeByteDataLineRaw(stream, samples, count, buf,
+					header.getMaxColor() > 255);
+			break;
+		}
+	}
+
+	/**
+	 * Write bits as plain text ("10111100") to the stream, wrapping lines
+	 * at MAX_PLAIN_LINE characters.
+	 */
+	private static void writeBitDataLine(ImageOutputStream stream,
+			int[] samples, int count, byte[] buf) throws IOException {
+		int len = 0;
+		for (int i = 0; i < count; i++) {
+			if (len == MAX_PLAIN_LINE) {
+				buf[len] = '\n';
+				stream.write(buf, 0, len + 1);
+				len = 0;
+			}
+			buf[len++] = samples[i] == 0 ? (byte) '0' : (byte) '1';
+		}
+		buf[len] = '\n';
+		stream.write(buf, 0, len + 1);
+	}
+
+	/**
+	 * Write bits packed into bytes to the stream.
+	 */
+	private static void writeBitDataLineRaw(ImageOutputStream stream,
+			int[] samples, int count, byte[] buf) throws IOException {
+		int numBytes = (count + 7) / 8;
+		for (int i = 0; i < numBytes; i++) {
+			int b = 0;
+			for (int j = 0; j < 8; j++) {
+				int k = i * 8 + j;
+				if (k < count && samples[k] != 0) {
+					b |= 0x80 >> j;
+				}
+			}
+			buf[i] = (byte) b;
+		}
+		stream.write(buf, 0, numBytes);
+	}
+
+	/**
+	 * Write samples as plain text numbers to the stream, wrapping lines
+	 * at MAX_PLAIN_LINE characters.
+	 */
+	private static void writeByteDataLine(ImageOutputStream stream,
+			int[] samples, int count, byte[] buf) throws IOException {
+		int len = 0;
+		for (int i = 0; i < count; i++) {
+			int value = samples[i];
+			int digits = value < 10 ? 1 : value < 100 ? 2 : value < 1000 ? 3
+					: value < 10000 ? 4 : 5;
+			// Start a new line if the number (plus separator) won't fit.
+			if (len + digits > MAX_PLAIN_LINE) {
+				buf[len - 1] = '\n';
+				stream.write(buf, 0, len);
+				len = 0;
+			}
+			for (int j = len + digits - 1; j >= len; j--) {
+				buf[j] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			len += digits;
+			buf[len++] = ' ';
+		}
+		if (len > 0) {
+			buf[len - 1] = '\n';
+			stream.write(buf, 0, len);
+		}
+	}
+
+	/**
+	 * Write samples as binary data (one or two bytes, big-endian) to the
+	 * stream.
+	 */
+	private static void writeByteDataLineRaw(ImageOutputStream stream,
+			int[] samples, int count, byte[] buf, boolean twoBytes)
+			throws IOException {
+		if (twoBytes) {
+			for (int i = 0; i < count; i++) {
+				buf[2 * i] = (byte) (samples[i] >> 8);
+				buf[2 * i + 1] = (byte) samples[i];
+			}
+			stream.write(buf, 0, count * 2);
+		} else {
+			for (int i = 0; i < count; i++) {
+				buf[i] = (byte) samples[i];
+			}
+			stream.write(buf, 0, count);
 		}
 	}
 
@@ -0,0 +1,103 @@
+package org.scrivo.imageio.netpbm;
+
+/**
+ * The properties of a Netpbm image as read from its header by
+ * PbmImageProbe, without decoding any image data. Instances are immutable.
+ */
+public final class PbmImageInfo {
+
+	private final String signature;
+	private final int width;
+	private final int height;
+	private final int depth;
+	private final int maxValue;
+	private final long rasterOffset;
+	private final long rasterLength;
+
+	/**
+	 * Construct a PbmImageInfo from the header of an image.
+	 *
+	 * @param header The header of the image.
+	 */
+	PbmImageInfo(NetpbmHeader header) {
+		this.signature = header.getSignature().name();
+		this.width = header.getWidth();
+		this.height = header.getHeight();
+		this.depth = header.getDepth();
+		this.maxValue = header.getMaxColor();
+		this.rasterOffset = header.getRasterOffset();
+		this.rasterLength = header.isRaw() ? header.getRasterLength() : -1L;
+	}
+
+	/**
+	 * @return
+	 * 		The signature (magic number) of the image, "P1" to "P7".
+	 */
+	public String getSignature() {
+		return signature;
+	}
+
+	/**
+	 * @return
+	 * 		The width of the image.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return
+	 * 		The height of the image.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return
+	 * 		The number of samples per pixel.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return
+	 * 		The maximum sample value (maxval) of the image, 1 for bitmaps.
+	 */
+	public int getMaxValue() {
+		return maxValue;
+	}
+
+	/**
+	 * @return
+	 * 		True if the image data is stored in binary (raw) format.
+	 */
+	public boolean isRaw() {
+		return rasterLength >= 0;
+	}
+
+	/**
+	 * @return
+	 * 		The position of the image data in the file.
+	 */
+	public long getRasterOffset() {
+		return rasterOffset;
+	}
+
+	/**
+	 * @return
+	 * 		The number of bytes the image data of a raw image takes, or -1
+	 * 		for plain images of which the length of the data varies.
+	 */
+	public long getRasterLength() {
+		return rasterLength;
+	}
+
+	@Override
+	public String toString() {
+		return signature + " " + width + "x" + height + "x" + depth
+				+ " maxval " + maxValue;
+	}
+
+}
@@ -0,0 +1,214 @@
+package org.scrivo.imageio.netpbm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.IIOException;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * PbmImageProbe reads the properties of Netpbm images from their headers
+ * only, f.i. to get the dimensions of many images without creating image
+ * readers. Only a small prefix of a file is read to parse the header.
+ *
+ * Next to the static probe method, instances of PbmImageProbe probe files
+ * using a bounded cache of the most recently probed files. A cached result
+ * is used as long as the modification time and the size of the file are
+ * unchanged.
+ */
+public final class PbmImageProbe {
+
+	/** Size of the prefix of a file that is read to parse its header. */
+	static final int PREFIX_SIZE = 512;
+	/** Largest prefix read, for headers with long comments. */
+	static final int MAX_PREFIX_SIZE = 1 << 16;
+
+	/** The cache of probed files, in order of access. */
+	private final Map<Path, CacheEntry> cache;
+
+	/**
+	 * Construct a PbmImageProbe that caches the results of the files it
+	 * probed.
+	 *
+	 * @param maxEntries
+	 * 		The maximum number of files in the cache, the least recently used
+	 * 		files are removed first.
+	 */
+	public PbmImageProbe(final int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries < 1");
+		}
+		cache = new LinkedHashMap<Path, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Path, CacheEntry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get the properties of the image in a file, from the cache if the file
+	 * was probed before and didn't change since.
+	 *
+	 * @param file
+	 * 		The image file.
+	 * @return
+	 * 		The properties of the (first) image in the file.
+	 * @throws IOException
+	 * 		If the file could not be read or holds no Netpbm image.
+	 */
+	public PbmImageInfo get(final Path file) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(file,
+				BasicFileAttributes.class);
+		long modified = attrs.lastModifiedTime().toMillis();
+		Path key = file.toAbsolutePath().normalize();
+		synchronized (cache) {
+			CacheEntry entry = cache.get(key);
+			if (entry != null && entry.modified == modified
+					&& entry.size == attrs.size()) {
+				return entry.info;
+			}
+		}
+		PbmImageInfo info = probe(file);
+		synchronized (cache) {
+			cache.put(key, new CacheEntry(modified, attrs.size(), info));
+		}
+		return info;
+	}
+
+	/**
+	 * Remove all files from the cache.
+	 */
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Get the properties of the image in a file by reading its header.
+	 *
+	 * @param file
+	 * 		The image file.
+	 * @return
+	 * 		The properties of the (first) image in the file.
+	 * @throws IOException
+	 * 		If the file could not be read or holds no Netpbm image.
+	 */
+	public static PbmImageInfo probe(final Path file) throws IOException {
+		try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+			byte[] prefix = new byte[PREFIX_SIZE];
+			while (true) {
+				int len = readPrefix(channel, prefix);
+				// The header (or the white space and comments that follow the
+				// header of a plain image) might continue beyond the prefix,
+				// then try again with a larger one.
+				boolean more = len == prefix.length
+						&& prefix.length < MAX_PREFIX_SIZE;
+				NetpbmHeader header;
+				try {
+					header = NetpbmUtil.readHeader(new NetpbmImageInputStream(
+							new PrefixInputStream(prefix, len), len));
+				} catch (IIOException e) {
+					if (!more) {
+						throw e;
+					}
+					prefix = new byte[Math.min(prefix.length * 8,
+							MAX_PREFIX_SIZE)];
+					continue;
+				}
+				if (more && header.getRasterOffset() >= len) {
+					prefix = new byte[Math.min(prefix.length * 8,
+							MAX_PREFIX_SIZE)];
+					continue;
+				}
+				return new PbmImageInfo(header);
+			}
+		}
+	}
+
+	/**
+	 * Read the start of a file.
+	 *
+	 * @return
+	 * 		The number of bytes read, less than the length of the prefix only
+	 * 		if the file is smaller.
+	 */
+	private static int readPrefix(SeekableByteChannel channel, byte[] prefix)
+			throws IOException {
+		channel.position(0);
+		ByteBuffer buf = ByteBuffer.wrap(prefix);
+		while (buf.hasRemaining() && channel.read(buf) >= 0) {
+			// Keep reading until the prefix is full or the end of the file.
+		}
+		return buf.position();
+	}
+
+	/**
+	 * A cached result of probing a file.
+	 */
+	private static final class CacheEntry {
+
+		private final long modified;
+		private final long size;
+		private final PbmImageInfo info;
+
+		private CacheEntry(long modified, long size, PbmImageInfo info) {
+			this.modified = modified;
+			this.size = size;
+			this.info = info;
+		}
+
+	}
+
+	/**
+	 * An ImageInputStream that reads the prefix of a file from an array.
+	 */
+	private static final class PrefixInputStream extends ImageInputStreamImpl {
+
+		private final byte[] data;
+		private final int length;
+
+		private PrefixInputStream(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+
+		@Override
+		public int read() {
+			if (streamPos >= length) {
+				return -1;
+			}
+			bitOffset = 0;
+			return data[(int) streamPos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (streamPos >= length) {
+				return -1;
+			}
+			bitOffset = 0;
+			int n = (int) Math.min(len, length - streamPos);
+			System.arraycopy(data, (int) streamPos, b, off, n);
+			streamPos += n;
+			return n;
+		}
+
+		@Override
+		public long length() {
+			return length;
+		}
+
+	}
+
+}
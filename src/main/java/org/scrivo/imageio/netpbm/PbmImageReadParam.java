@@ -0,0 +1,113 @@
+package org.scrivo.imageio.netpbm;
+
+import javax.imageio.ImageReadParam;
+
+/**
+ * Read parameters for the Netpbm image reader. Next to the standard source
+ * region, subsampling and band selection settings it allows to decode raw
+ * images in parallel: the raster is split into horizontal bands of rows that
+ * are decoded at the same time on the common fork-join pool.
+ *
+ * Parallel decoding applies to raw images of which the reader was given the
+ * file (a File or Path) as input and of which the raster takes at least
+ * 64KB, since the bands are read from the raster mapped into memory. Other
+ * images are decoded row by row as usual.
+ *
+ * By default images with truncated image data are read leniently: the
+ * samples missing at the end are 0 (and bits missing from bitmaps white).
+ * In strict mode reading an image fails instead, before the image is even
+ * allocated if the length of the input is known. Services that read files
+ * from untrusted sources can also limit the number of pixels of the images
+ * they read, to reject small files that claim huge dimensions.
+ */
+public class PbmImageReadParam extends ImageReadParam {
+
+	/** The default maximum number of pixels of an image: no limit. */
+	public static final long DEFAULT_MAX_PIXELS = Long.MAX_VALUE;
+
+	private int parallelism = 1;
+	private boolean strict = false;
+	private long maxPixels = DEFAULT_MAX_PIXELS;
+
+	/**
+	 * Construct a PbmImageReadParam using the default settings: images are
+	 * decoded on the calling thread only.
+	 */
+	public PbmImageReadParam() {
+		super();
+	}
+
+	/**
+	 * @return
+	 * 		The number of bands of rows that are decoded at the same time.
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Set the number of bands of rows that are decoded at the same time. Use
+	 * 1 to decode images on the calling thread only, or for instance
+	 * Runtime.getRuntime().availableProcessors() to use all cores. Small
+	 * images are split into fewer bands.
+	 *
+	 * When decoding in parallel, progress is reported to the listeners of
+	 * the reader in coarse steps: once for every band, in the order of the
+	 * bands, as soon as that band and all bands before it are done.
+	 *
+	 * @param parallelism
+	 * 		The number of bands (1 or more).
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism < 1");
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return
+	 * 		True if reading fails on truncated image data.
+	 */
+	public boolean isStrict() {
+		return strict;
+	}
+
+	/**
+	 * Set strict or lenient validation of the image data. In strict mode an
+	 * IIOException is thrown if the input is too short to hold the image
+	 * data that the header declares, or as soon as the image data ends in
+	 * the middle of the image. In lenient mode the missing samples are 0.
+	 *
+	 * @param strict
+	 * 		True for strict validation.
+	 */
+	public void setStrict(boolean strict) {
+		this.strict = strict;
+	}
+
+	/**
+	 * @return
+	 * 		The maximum number of pixels of the images that are read.
+	 */
+	public long getMaxPixels() {
+		return maxPixels;
+	}
+
+	/**
+	 * Set the maximum number of pixels of the images (or rasters) that are
+	 * read, larger images are rejected with an IIOException before memory is
+	 * allocated for them. By default the number of pixels is only limited by
+	 * the size of the arrays that hold the samples.
+	 *
+	 * @param maxPixels
+	 * 		The maximum number of pixels (1 or more).
+	 */
+	public void setMaxPixels(long maxPixels) {
+		if (maxPixels < 1) {
+			throw new IllegalArgumentException("maxPixels < 1");
+		}
+		this.maxPixels = maxPixels;
+	}
+
+}
@@ -6,11 +6,27 @@ import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinTask;
 
 import javax.imageio.IIOException;
 import javax.imageio.ImageReadParam;
@@ -18,6 +34,7 @@ import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 
 /**
@@ -25,7 +42,43 @@ import javax.imageio.stream.ImageInputStream;
  * stored in an input file or stream, as well as the actual reading of images,
  * thumbnails, and metadata.
  * 
- * Note: this implementation does not include thumbnails and metadata.
+ * A Netpbm stream can hold multiple images. The reader keeps an index of the 
+ * headers of the images, which is built as images are requested. For raw 
+ * images the reader can skip from one image to the next using the size of
+ * the raster, for plain images the samples need to be read.
+ * 
+ * When the input is a file (a File or Path) rather than an ImageInputStream,
+ * the reader opens the file itself and maps the raster of raw images of 64KB
+ * or more into memory, so rows are copied straight from the mapped file into
+ * the destination image. The mapping is kept for further reads of the same
+ * image. The file is closed when the input changes or the reader is disposed
+ * of.
+ * 
+ * Bitmaps (pbm) are read into TYPE_BYTE_BINARY images by default, which take
+ * one bit per pixel. The packed rows of raw bitmaps are copied into the image
+ * as they are, apart from inverting the bits. Bitmaps can still be read into
+ * 8 bit grayscale images, the second image type offered.
+ * 
+ * Raw images in files can be decoded in parallel, see PbmImageReadParam.
+ * 
+ * While reading an image the reader reports its progress to the registered
+ * listeners for every few rows, and it stops reading when an abort is 
+ * requested. Use readRows to get the rows of an image one by one, without
+ * creating an image to hold them.
+ * 
+ * Rasters can be read too (readRaster), which hold the samples as they are
+ * decoded without a color model. Raw images with 8 or 16 bit samples that 
+ * need no scaling are read into a raster with a single bulk read.
+ * 
+ * To decode many images without allocating memory for each of them, use
+ * readInto to decode images into a buffer owned by the caller. The reader 
+ * keeps its read and row buffers when the input changes or the reader is 
+ * reset, so a reader can be reused for many images. Dispose of the reader to
+ * release them.
+ * 
+ * The image metadata holds the values and the comments of the header of an
+ * image, see PbmMetadataFormat. The reader has no stream metadata and the
+ * images have no thumbnails.
  * 
  * @see <a href="https://docs.oracle.com/javase/8/docs/technotes/guides/imageio/spec/extending.fm1.html">Writing Image I/O Plug-ins</a>
  */
@@ -34,12 +87,58 @@ public class PbmImageReader extends ImageReader {
 	NetpbmImageInputStream stream = null;
 	NetpbmHeader header = null;
 
+	/** The minimum number of rows in a band that is decoded in parallel. */
+	private static final int MIN_BAND_ROWS = 16;
+	/** The number of source rows decoded between progress reports. */
+	private static final int UPDATE_ROWS = 16;
+	/**
+	 * The minimum length of a raster that is mapped into memory, smaller
+	 * rasters are read through the stream, which is cheaper than mapping.
+	 */
+	private static final long MIN_MAPPED_LENGTH = 1 << 16;
+
+	/** The headers of the images found in the stream so far (the index). */
+	private final List<NetpbmHeader> headers = new ArrayList<>();
+	/** True if all images in the stream have been indexed. */
+	private boolean indexComplete = false;
+
+	/** The file to read, if the input is a File or Path. */
+	private Path file = null;
+	/** The file opened by the reader, if the input is a File or Path. */
+	private RandomAccessFile raf = null;
+	/** The channel of the opened file, used to map rasters into memory. */
+	private FileChannel channel = null;
+	/** The mapped raster of the last image read from the file, if any. */
+	private NetpbmMappedRaster mappedRaster = null;
+	/** The header of the image of the mapped raster. */
+	private NetpbmHeader mappedHeader = null;
+
+	/**
+	 * The buffered stream used for all inputs, so its read buffer is reused
+	 * when the input changes.
+	 */
+	private NetpbmImageInputStream inputStream = null;
+	/** The row raster of the last read, reused by the next read if the
+	 * rows are of the same size. */
+	private WritableRaster rowRaster = null;
+	/** Row buffers for readInto, kept for decoding the next image. */
+	private byte[] byteRowBuffer = null;
+	private short[] shortRowBuffer = null;
+	/** True if the current read fails on truncated image data. */
+	private boolean strict = false;
+	/**
+	 * Mirrors the abort request of ImageReader, so the rows being decoded
+	 * (possibly by several threads) can check it without taking the lock on
+	 * the reader.
+	 */
+	private volatile boolean aborted = false;
+
 	protected PbmImageReader(ImageReaderSpi originatingProvider) {
 		super(originatingProvider);
 	}
 
 	private void checkIndex(int imageIndex) {
-		if (imageIndex != 0) {
+		if (imageIndex < minIndex) {
 			throw new IndexOutOfBoundsException("Bad index");
 		}
 	}
@@ -48,45 +147,217 @@ public class PbmImageReader extends ImageReader {
 	public void setInput(Object input, boolean seekForwardOnly,
 			boolean ignoreMetadata) {
 		super.setInput(input, seekForwardOnly, ignoreMetadata);
-		stream = new NetpbmImageInputStream((ImageInputStream) input);
+		closeFile();
+		if (input instanceof File) {
+			file = ((File) input).toPath();
+		} else if (input instanceof Path) {
+			file = (Path) input;
+		} else if (input != null) {
+			stream = bufferedStream((ImageInputStream) input);
+		}
 		header = null;
+		headers.clear();
+		indexComplete = false;
+	}
+
+	@Override
+	public void abort() {
+		aborted = true;
+		super.abort();
+	}
+
+	@Override
+	protected boolean abortRequested() {
+		return aborted;
+	}
+
+	@Override
+	protected void clearAbortRequest() {
+		aborted = false;
+		super.clearAbortRequest();
+	}
+
+	/**
+	 * Release all resources held by the reader: the file opened by the reader
+	 * is closed and the internal buffers are released.
+	 */
+	@Override
+	public void dispose() {
+		closeFile();
+		header = null;
+		headers.clear();
+		indexComplete = false;
+		inputStream = null;
+		rowRaster = null;
+		byteRowBuffer = null;
+		shortRowBuffer = null;
+	}
+
+	/**
+	 * Get the buffered stream reading from the given input, reusing the
+	 * stream of previous inputs.
+	 */
+	private NetpbmImageInputStream bufferedStream(ImageInputStream input) {
+		if (inputStream == null) {
+			inputStream = new NetpbmImageInputStream(input);
+		} else {
+			inputStream.setInput(input);
+		}
+		return inputStream;
+	}
+
+	/**
+	 * Open the input file, if the input is a File or Path and it hasn't been
+	 * opened yet.
+	 * 
+	 * @throws IOException
+	 */
+	private void openInput() throws IOException {
+		if (stream == null && file != null) {
+			raf = new RandomAccessFile(file.toFile(), "r");
+			channel = raf.getChannel();
+			stream = bufferedStream(new FileImageInputStream(raf));
+		}
+		if (stream == null) {
+			throw new IllegalStateException("No input stream");
+		}
+	}
+
+	/**
+	 * Get the mapped raster of the current image, which is mapped if the
+	 * image is raw, the reader opened the file itself and the raster is large
+	 * enough. The raster stays mapped for the next read of the same image.
+	 * 
+	 * @return
+	 * 		The mapped raster, or null if the raster is read from the stream.
+	 * @throws IOException
+	 */
+	private NetpbmMappedRaster mappedRaster() throws IOException {
+		if (channel == null || !header.isRaw()
+				|| header.getRasterLength() < MIN_MAPPED_LENGTH) {
+			return null;
+		}
+		if (mappedHeader != header) {
+			mappedRaster = new NetpbmMappedRaster(channel, header);
+			mappedHeader = header;
+		}
+		return mappedRaster;
+	}
+
+	/**
+	 * Close the file opened by the reader, if any, and forget the input.
+	 */
+	private void closeFile() {
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// Nothing sensible to do, the file was only read.
+			}
+		}
+		raf = null;
+		channel = null;
+		mappedRaster = null;
+		mappedHeader = null;
+		file = null;
+		stream = null;
+		// Don't hold on to the previous input.
+		if (inputStream != null) {
+			inputStream.setInput(null);
+		}
+	}
+
+	@Override
+	public ImageReadParam getDefaultReadParam() {
+		return new PbmImageReadParam();
 	}
 
 	@Override
 	public int getNumImages(boolean allowSearch) throws IOException {
-		// Netpbm images actually support more than one image but this
-		// is not supported by this reader.
-		return 1;
+		openInput();
+		if (allowSearch && seekForwardOnly) {
+			throw new IllegalStateException(
+					"Can't search for images if seekForwardOnly is set");
+		}
+		if (!indexComplete) {
+			if (!allowSearch) {
+				return -1;
+			}
+			while (readNextHeader()) {
+				// Index all images in the stream.
+			}
+		}
+		return headers.size();
 	}
 
 	@Override
 	public int getWidth(int imageIndex) throws IOException {
-		checkIndex(imageIndex);
-		readHeader();
+		readHeader(imageIndex);
 		return header.getWidth();
 	}
 
 	@Override
 	public int getHeight(int imageIndex) throws IOException {
-		checkIndex(imageIndex);
-		readHeader();
+		readHeader(imageIndex);
 		return header.getHeight();
 	}
 
 	@Override
 	public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex)
 			throws IOException {
-		checkIndex(imageIndex);
-		readHeader();
+		readHeader(imageIndex);
 		ImageTypeSpecifier imageTypeSpecifier;
-		if (header.isPixmap()) {
+		// Samples of images with a maxColor over 255 are stored as 16 bit.
+		int dataType = header.isWide() ? DataBuffer.TYPE_USHORT
+				: DataBuffer.TYPE_BYTE;
+		int bits = header.isWide() ? 16 : 8;
+		switch (header.getDepth()) {
+		case 1:
+			if (header.isBitmap()) {
+				return Arrays.asList(
+						ImageTypeSpecifier.createFromBufferedImageType(
+								BufferedImage.TYPE_BYTE_BINARY),
+						ImageTypeSpecifier.createGrayscale(8,
+								DataBuffer.TYPE_BYTE, false)).iterator();
+			}
+			imageTypeSpecifier = ImageTypeSpecifier.createGrayscale(
+					bits, dataType, false);
+			break;
+		case 2:
+			// Grayscale with alpha (PAM only).
+			imageTypeSpecifier = ImageTypeSpecifier.createGrayscale(
+					bits, dataType, false, false);
+			break;
+		case 3:
 			imageTypeSpecifier = ImageTypeSpecifier.createInterleaved(
 					ColorSpace.getInstance(ColorSpace.CS_sRGB),
-					new int[] { 0, 1, 2 }, DataBuffer.TYPE_BYTE, false, false);
-
-		} else {
-			imageTypeSpecifier = ImageTypeSpecifier.createGrayscale(
-					8, DataBuffer.TYPE_BYTE, false);
+					new int[] { 0, 1, 2 }, dataType, false, false);
+			// Images with 8 bit samples can also be decoded straight into
+			// the types Java2D prefers.
+			if (!header.isWide()) {
+				return Arrays.asList(imageTypeSpecifier,
+						ImageTypeSpecifier.createFromBufferedImageType(
+								BufferedImage.TYPE_3BYTE_BGR),
+						ImageTypeSpecifier.createFromBufferedImageType(
+								BufferedImage.TYPE_INT_RGB)).iterator();
+			}
+			break;
+		case 4:
+			// RGB with alpha (PAM only).
+			imageTypeSpecifier = ImageTypeSpecifier.createInterleaved(
+					ColorSpace.getInstance(ColorSpace.CS_sRGB),
+					new int[] { 0, 1, 2, 3 }, dataType, true, false);
+			if (!header.isWide()) {
+				return Arrays.asList(imageTypeSpecifier,
+						ImageTypeSpecifier.createFromBufferedImageType(
+								BufferedImage.TYPE_4BYTE_ABGR),
+						ImageTypeSpecifier.createFromBufferedImageType(
+								BufferedImage.TYPE_INT_ARGB)).iterator();
+			}
+			break;
+		default:
+			throw new IIOException("Unsupported PAM depth: "
+					+ header.getDepth());
 		}
 		return Collections.singletonList(imageTypeSpecifier).iterator();
 	}
@@ -96,94 +367,1083 @@ public class PbmImageReader extends ImageReader {
 		return null;
 	}
 
+	/**
+	 * Get the metadata of an image, see PbmMetadataFormat. The metadata is
+	 * built on request, the comments are read from the header then. If the
+	 * input was set with ignoreMetadata null is returned.
+	 */
 	@Override
 	public IIOMetadata getImageMetadata(int imageIndex) throws IOException {
-		return null;
+		checkIndex(imageIndex);
+		if (ignoreMetadata) {
+			return null;
+		}
+		readHeader(imageIndex);
+		return new NetpbmMetadata(header,
+				NetpbmUtil.readComments(stream, header));
+	}
+
+	/**
+	 * Make the header of the given image the current header, extending the
+	 * index of images in the stream if required.
+	 * 
+	 * @param imageIndex
+	 * 		The index of the image.
+	 * @throws IOException
+	 */
+	private void readHeader(int imageIndex) throws IOException {
+		openInput();
+		checkIndex(imageIndex);
+		while (headers.size() <= imageIndex) {
+			if (!readNextHeader()) {
+				throw new IndexOutOfBoundsException("Bad index");
+			}
+		}
+		NetpbmHeader current = headers.get(imageIndex);
+		if (current != header) {
+			header = current;
+			adaptBufferSize();
+		}
+		// Images before this one won't be read again, nor will the header
+		// of this image unless its metadata is requested, so let the stream
+		// discard what it cached of these.
+		if (seekForwardOnly) {
+			minIndex = imageIndex;
+			long flushPos = Math.min(ignoreMetadata ? header.getRasterOffset()
+					: header.getHeaderOffset(), stream.getStreamPosition());
+			if (flushPos > stream.getFlushedPosition()) {
+				stream.flushBefore(flushPos);
+			}
+		}
+	}
+
+	/**
+	 * Adapt the size of the read buffer of the stream to the current image:
+	 * the buffer is made large enough to hold a row of the image, but not
+	 * larger than the remainder of the file.
+	 */
+	private void adaptBufferSize() {
+		// Samples in plain images take about four characters (two for
+		// bitmaps) including the white space.
+		long rowSize = header.isRaw() ? header.getBytesPerRow()
+				: (header.isBitmap() ? 2L : 4L) * header.getWidth()
+						* header.getDepth();
+		long size = Math.max(NetpbmImageInputStream.DEFAULT_BUFFER_SIZE,
+				rowSize);
+		long length = stream.length();
+		if (length >= 0) {
+			size = Math.min(size, length - header.getRasterOffset());
+		}
+		stream.setBufferSize(size);
 	}
 
-	private void readHeader() throws IIOException {
-		if (null == header) {
-			header = NetpbmUtil.readHeader(stream);
+	/**
+	 * Add the header of the image following the last image in the index to
+	 * the index. The first image is expected at the current position of the
+	 * stream, any following images start directly after the raster of the
+	 * image before it.
+	 * 
+	 * @return
+	 * 		True if an image was found, false if the end of the stream was
+	 * 		reached.
+	 * @throws IOException
+	 */
+	private boolean readNextHeader() throws IOException {
+		if (indexComplete) {
+			return false;
+		}
+		if (headers.isEmpty()) {
+			headers.add(NetpbmUtil.readHeader(stream));
+			return true;
 		}
+		NetpbmUtil.skipRaster(stream, headers.get(headers.size() - 1));
+		long offset = stream.skipToToken();
+		if (offset >= 0) {
+			stream.seek(offset);
+			try {
+				headers.add(NetpbmUtil.readHeader(stream));
+				return true;
+			} catch (IIOException e) {
+				// Trailing data that is not an image, we're done.
+			}
+		}
+		indexComplete = true;
+		return false;
 	}
 
 	@Override
 	public BufferedImage read(int imageIndex, ImageReadParam param)
 			throws IOException {
 
-		if (stream == null) {
-			throw new IllegalStateException("PbmImageReader");
-		}
-
-		checkIndex(imageIndex);
-		readHeader();
+		readHeader(imageIndex);
 
 		if (null == param) {
-			param = new ImageReadParam();
+			param = getDefaultReadParam();
 		}
 
 		// Compute initial source region, clip against destination later
 		Rectangle sourceRegion = getSourceRegion(param, header.getWidth(),
 				header.getHeight());
 
+		// Check the image before a destination is created for it.
+		long dstWidth = 0;
+		long dstHeight = 0;
+		if (param.getDestination() == null) {
+			dstWidth = param.getDestinationOffset().x + (sourceRegion.width
+					+ param.getSourceXSubsampling() - 1)
+					/ param.getSourceXSubsampling();
+			dstHeight = param.getDestinationOffset().y + (sourceRegion.height
+					+ param.getSourceYSubsampling() - 1)
+					/ param.getSourceYSubsampling();
+		}
+		strict = checkImage(param, dstWidth, dstHeight, header.getDepth());
+
 		// Get the specified detination image or create a new one
-		BufferedImage dst = getDestination(param, getImageTypes(0),
+		BufferedImage dst = getDestination(param, getImageTypes(imageIndex),
 				header.getWidth(), header.getHeight());
 		// Ensure band settings from param are compatible with images
-		int inputBands = header.isPixmap() ? 3 : 1;
+		int inputBands = header.getDepth();
 		checkReadParamBandSettings(param, inputBands,
 				dst.getSampleModel().getNumBands());
 
+		WritableRaster imRas = dst.getWritableTile(0, 0);
+
+		// Create a child raster exposing only the desired dest bands
+		if (param.getDestinationBands() != null) {
+			imRas = imRas.createWritableChild(0, 0, imRas.getWidth(),
+					imRas.getHeight(), 0, 0, param.getDestinationBands());
+		}
+
+		boolean directCopy = isDirectCopyCompatible(param, imRas,
+				header.isWide() ? DataBuffer.TYPE_USHORT : DataBuffer.TYPE_BYTE,
+				inputBands);
+		boolean packedCopy = header.getSignature() == NetpbmSignature.P4
+				&& isPackedCopyCompatible(param, imRas);
+
+		clearAbortRequest();
+		processImageStarted(imageIndex);
+
+		boolean complete;
+		int parallelism = param instanceof PbmImageReadParam
+				? ((PbmImageReadParam) param).getParallelism() : 1;
+		NetpbmMappedRaster mapped = mappedRaster();
+		if (parallelism > 1 && mapped != null) {
+			complete = rasterDataParallel(param, sourceRegion, dst, imRas,
+					directCopy, packedCopy, parallelism);
+		} else {
+			complete = rasterData(param, sourceRegion, rowRaster(param),
+					mapped, dst, imRas, directCopy, packedCopy,
+					sourceRegion.y, sourceRegion.y + sourceRegion.height);
+		}
+
+		// Bands decoded in parallel may all be done before an abort that was
+		// requested while reporting their progress.
+		if (complete && !abortRequested()) {
+			processImageComplete();
+		} else {
+			processReadAborted();
+		}
+
+		return dst;
+	}
+
+	@Override
+	public boolean canReadRaster() {
+		return true;
+	}
+
+	/**
+	 * Read an image into a raster, without a color model. The source region,
+	 * subsampling and source bands of the read parameters are applied, the
+	 * destination settings are ignored. The samples are interleaved bytes, or
+	 * shorts for images with a maxval over 255. Bitmaps are returned as 
+	 * rasters with packed bits (0 is black) like TYPE_BYTE_BINARY images.
+	 */
+	@Override
+	public Raster readRaster(int imageIndex, ImageReadParam param)
+			throws IOException {
+
+		readHeader(imageIndex);
+
+		if (null == param) {
+			param = getDefaultReadParam();
+		}
+
+		// Only the source settings apply to rasters.
+		ImageReadParam rasterParam = new ImageReadParam();
+		rasterParam.setSourceRegion(param.getSourceRegion());
+		rasterParam.setSourceSubsampling(param.getSourceXSubsampling(),
+				param.getSourceYSubsampling(), param.getSubsamplingXOffset(),
+				param.getSubsamplingYOffset());
+		rasterParam.setSourceBands(param.getSourceBands());
+
+		Rectangle sourceRegion = getSourceRegion(rasterParam,
+				header.getWidth(), header.getHeight());
+		int width = (sourceRegion.width + param.getSourceXSubsampling() - 1)
+				/ param.getSourceXSubsampling();
+		int height = (sourceRegion.height + param.getSourceYSubsampling() - 1)
+				/ param.getSourceYSubsampling();
+		int bands = param.getSourceBands() != null
+				? param.getSourceBands().length : header.getDepth();
+		checkReadParamBandSettings(rasterParam, header.getDepth(), bands);
+		strict = checkImage(param, width, height, bands);
+
+		WritableRaster raster;
+		if (header.isBitmap()) {
+			raster = Raster.createPackedRaster(DataBuffer.TYPE_BYTE, width,
+					height, 1, 1, null);
+		} else {
+			raster = Raster.createInterleavedRaster(header.isWide()
+					? DataBuffer.TYPE_USHORT : DataBuffer.TYPE_BYTE,
+					width, height, bands, null);
+		}
+
+		clearAbortRequest();
+
+		boolean fullImage = width == header.getWidth()
+				&& height == header.getHeight()
+				&& param.getSourceBands() == null;
+		if (fullImage && header.isRaw() && !header.isBitmap()
+				&& (header.isWide() ? header.getWideSampleTable() == null
+						: header.getSampleTable() == null)) {
+			// The raster holds the samples exactly as they are stored.
+			// Samples missing from truncated image data are 0.
+			stream.seek(header.getRasterOffset());
+			int numRead;
+			int length;
+			if (header.isWide()) {
+				short[] data = ((DataBufferUShort) raster.getDataBuffer())
+						.getData();
+				numRead = stream.readShorts(data, data.length);
+				length = data.length;
+				Arrays.fill(data, numRead, length, (short) 0);
+			} else {
+				byte[] data = ((DataBufferByte) raster.getDataBuffer())
+						.getData();
+				numRead = Math.max(0, stream.read(data, 0, data.length));
+				length = data.length;
+				Arrays.fill(data, numRead, length, (byte) 0);
+			}
+			checkRow(numRead == length, strict,
+					(int) ((long) numRead * height / length));
+		} else {
+			rasterData(rasterParam, sourceRegion, rowRaster(rasterParam),
+					mappedRaster(), null, raster, isDirectCopyCompatible(rasterParam, raster,
+							raster.getDataBuffer().getDataType(),
+							header.getDepth()),
+					header.getSignature() == NetpbmSignature.P4
+							&& isPackedCopyCompatible(rasterParam, raster),
+					sourceRegion.y, sourceRegion.y + sourceRegion.height);
+		}
+
+		return raster;
+	}
+
+	/**
+	 * Decode an image into an array owned by the caller. The samples are 
+	 * stored interleaved, scaled like in the images returned by read, and 
+	 * take one byte each, or two bytes (big-endian) for images with a maxval
+	 * over 255. Bitmaps are stored as 8 bit grayscale (0 or 255). Samples
+	 * missing from truncated image data are 0 (white in bitmaps).
+	 * 
+	 * @param imageIndex
+	 * 		The index of the image.
+	 * @param dst
+	 * 		The array to store the samples in.
+	 * @param offset
+	 * 		The position of the first sample of the image in the array.
+	 * @param stride
+	 * 		The number of bytes from the start of a row to the start of the
+	 * 		next row, at least the width times the bytes per pixel.
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 * 		If the image doesn't fit in the array.
+	 */
+	public void readInto(int imageIndex, byte[] dst, int offset, int stride)
+			throws IOException {
+		readInto(imageIndex, dst, null, offset, stride, null);
+	}
+
+	/**
+	 * Decode an image into an array owned by the caller, like
+	 * readInto(int, byte[], int, int), validating the image data with the
+	 * given read parameters. Of a PbmImageReadParam the strict mode and the
+	 * maximum number of pixels apply, the source region, subsampling and
+	 * band and destination settings are not used.
+	 * 
+	 * @param imageIndex
+	 * 		The index of the image.
+	 * @param dst
+	 * 		The array to store the samples in.
+	 * @param offset
+	 * 		The position of the first sample of the image in the array.
+	 * @param stride
+	 * 		The number of bytes from the start of a row to the start of the
+	 * 		next row, at least the width times the bytes per pixel.
+	 * @param param
+	 * 		The read parameters, or null.
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 * 		If the image doesn't fit in the array.
+	 */
+	public void readInto(int imageIndex, byte[] dst, int offset, int stride,
+			ImageReadParam param) throws IOException {
+		readInto(imageIndex, dst, null, offset, stride, param);
+	}
+
+	/**
+	 * Decode an image into a (heap or direct) buffer owned by the caller,
+	 * like readInto(int, byte[], int, int). The image is stored starting at
+	 * the position of the buffer, two byte samples are stored in the byte 
+	 * order of the buffer. The position of the buffer is not changed.
+	 * 
+	 * @param imageIndex
+	 * 		The index of the image.
+	 * @param dst
+	 * 		The buffer to store the samples in.
+	 * @param stride
+	 * 		The number of bytes from the start of a row to the start of the
+	 * 		next row, at least the width times the bytes per pixel.
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 * 		If the image doesn't fit in the buffer.
+	 */
+	public void readInto(int imageIndex, ByteBuffer dst, int stride)
+			throws IOException {
+		readInto(imageIndex, dst, stride, null);
+	}
+
+	/**
+	 * Decode an image into a buffer owned by the caller, like
+	 * readInto(int, ByteBuffer, int), validating the image data with the
+	 * given read parameters like readInto(int, byte[], int, int,
+	 * ImageReadParam).
+	 * 
+	 * @param imageIndex
+	 * 		The index of the image.
+	 * @param dst
+	 * 		The buffer to store the samples in.
+	 * @param stride
+	 * 		The number of bytes from the start of a row to the start of the
+	 * 		next row, at least the width times the bytes per pixel.
+	 * @param param
+	 * 		The read parameters, or null.
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 * 		If the image doesn't fit in the buffer.
+	 */
+	public void readInto(int imageIndex, ByteBuffer dst, int stride,
+			ImageReadParam param) throws IOException {
+		readInto(imageIndex, null, dst.duplicate().order(dst.order()),
+				dst.position(), stride, param);
+	}
+
+	/**
+	 * Decode an image into an array or a buffer, see the public readInto
+	 * methods. Progress is reported to the listeners like for read.
+	 */
+	private void readInto(int imageIndex, byte[] array, ByteBuffer buffer,
+			int offset, int stride, ImageReadParam param) throws IOException {
+
+		readHeader(imageIndex);
+		if (null == param) {
+			param = getDefaultReadParam();
+		}
+
+		int samplesPerRow = header.getWidth() * header.getDepth();
+		int rowBytes = samplesPerRow * (header.isWide() ? 2 : 1);
+		int capacity = array != null ? array.length : buffer.limit();
+		if (offset < 0 || stride < rowBytes || offset
+				+ (long) (header.getHeight() - 1) * stride + rowBytes > capacity) {
+			throw new IllegalArgumentException("Image doesn't fit in buffer");
+		}
+		strict = checkImage(param, header.getWidth(), header.getHeight(),
+				header.getDepth());
+
+		// Reuse the row buffer of the previous image if it fits.
+		if (header.isWide() && (shortRowBuffer == null
+				|| shortRowBuffer.length != samplesPerRow)) {
+			shortRowBuffer = new short[samplesPerRow];
+		} else if (!header.isWide() && (byteRowBuffer == null
+				|| byteRowBuffer.length != samplesPerRow)) {
+			byteRowBuffer = new byte[samplesPerRow];
+		}
+
+		clearAbortRequest();
+		processImageStarted(imageIndex);
+		stream.seek(header.getRasterOffset());
+		for (int y = 0; y < header.getHeight(); y++) {
+			if (abortRequested()) {
+				processReadAborted();
+				return;
+			}
+			if (y > 0 && y % UPDATE_ROWS == 0) {
+				processImageProgress(100.0f * y / header.getHeight());
+			}
+			int pos = offset + y * stride;
+			if (header.isWide()) {
+				short[] row = shortRowBuffer;
+				checkRow(NetpbmUtil.readRow(stream, header, row, y), strict,
+						y);
+				for (int i = 0; i < samplesPerRow; i++) {
+					if (array != null) {
+						array[pos + 2 * i] = (byte) (row[i] >> 8);
+						array[pos + 2 * i + 1] = (byte) row[i];
+					} else {
+						buffer.putShort(pos + 2 * i, row[i]);
+					}
+				}
+			} else {
+				byte[] row = byteRowBuffer;
+				checkRow(NetpbmUtil.readRow(stream, header, row, y), strict,
+						y);
+				if (array != null) {
+					System.arraycopy(row, 0, array, pos, samplesPerRow);
+				} else {
+					buffer.position(pos);
+					buffer.put(row);
+				}
+			}
+		}
+		processImageProgress(100.0f);
+		processImageComplete();
+	}
+
+	/**
+	 * Get the rows of an image one by one, without creating an image to hold
+	 * them. The source region, subsampling and source bands of the read
+	 * parameters are applied to the rows, the destination settings are not
+	 * used. Samples are scaled like in the images returned by read, bitmaps
+	 * are returned as 8 bit grayscale.
+	 * 
+	 * The rows are decoded as they are requested, so only a row's worth of 
+	 * memory is used. The raster returned by the iterator is reused for the 
+	 * next row. The iterator reads from the input of the reader, so no other
+	 * reads should be done until the iterator is done. Errors while reading
+	 * are thrown as UncheckedIOException. The iteration ends early when an
+	 * abort is requested.
+	 * 
+	 * @param imageIndex
+	 * 		The index of the image.
+	 * @param param
+	 * 		The read parameters, or null.
+	 * @return
+	 * 		An iterator of rasters with a single row, which start at (0, 0).
+	 * @throws IOException
+	 */
+	public Iterator<Raster> readRows(int imageIndex, ImageReadParam param)
+			throws IOException {
+		readHeader(imageIndex);
+		if (null == param) {
+			param = getDefaultReadParam();
+		}
+		Rectangle sourceRegion = getSourceRegion(param, header.getWidth(),
+				header.getHeight());
+		strict = checkImage(param, header.getWidth(), 1, header.getDepth());
+		clearAbortRequest();
+		return new RowIterator(param, sourceRegion);
+	}
+
+	/**
+	 * Iterator of the rows of the current image, see readRows.
+	 */
+	private class RowIterator implements Iterator<Raster> {
+
+		private final NetpbmHeader rowHeader = header;
+		private final boolean rowStrict = strict;
+		private final ImageReadParam param;
+		private final Rectangle srcRegion;
+		/** The raster that rows are decoded into. */
+		private final WritableRaster rowRas;
+		/** The raster that is returned, a child of rowRas if there is no
+		 * horizontal subsampling. */
+		private final WritableRaster outRas;
+		/** The number of rows that will be returned. */
+		private final int rows;
+		/** The number of rows that have been returned. */
+		private int row = 0;
+		/** The next source row that will be read from the stream. */
+		private int streamRow = -1;
+
+		RowIterator(ImageReadParam param, Rectangle srcRegion) {
+			this.param = param;
+			this.srcRegion = srcRegion;
+			this.rowRas = createRowRaster(param);
+			int xSub = param.getSourceXSubsampling();
+			int ySub = param.getSourceYSubsampling();
+			this.rows = (srcRegion.height + ySub - 1) / ySub;
+			if (xSub == 1) {
+				outRas = rowRas.createWritableChild(srcRegion.x, 0,
+						srcRegion.width, 1, 0, 0, null);
+			} else {
+				outRas = rowRas.createCompatibleWritableRaster(
+						(srcRegion.width + xSub - 1) / xSub, 1);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return row < rows && !abortRequested();
+		}
+
+		@Override
+		public Raster next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int srcY = srcRegion.y + row * param.getSourceYSubsampling();
+			try {
+				if (rowHeader.isRaw()) {
+					// Skip straight to the row.
+					if (streamRow != srcY) {
+						stream.seek(rowHeader.getRasterOffset()
+								+ (long) srcY * rowHeader.getBytesPerRow());
+					}
+					readRow(srcY);
+				} else {
+					if (streamRow < 0) {
+						stream.seek(rowHeader.getRasterOffset());
+						streamRow = 0;
+					}
+					// Rows of plain images have to be tokenized one by one,
+					// rows left out by the subsampling are not decoded.
+					while (streamRow < srcY) {
+						NetpbmUtil.skipRow(stream, rowHeader, streamRow++);
+					}
+					readRow(srcY);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			row++;
+
+			int xSub = param.getSourceXSubsampling();
+			if (xSub > 1) {
+				int[] pixel = null;
+				for (int x = 0; x < outRas.getWidth(); x++) {
+					pixel = rowRas.getPixel(srcRegion.x + x * xSub, 0, pixel);
+					outRas.setPixel(x, 0, pixel);
+				}
+			}
+			return outRas;
+		}
+
+		private void readRow(int srcY) throws IOException {
+			DataBuffer rowDB = rowRas.getDataBuffer();
+			boolean complete;
+			if (rowDB instanceof DataBufferUShort) {
+				complete = NetpbmUtil.readRow(stream, rowHeader,
+						((DataBufferUShort) rowDB).getData(), srcY);
+			} else {
+				complete = NetpbmUtil.readRow(stream, rowHeader,
+						((DataBufferByte) rowDB).getData(), srcY);
+			}
+			checkRow(complete, rowStrict, srcY);
+			streamRow = srcY + 1;
+		}
+
+	}
+
+	/**
+	 * Create the raster of the buffer that image rows are decoded into,
+	 * exposing only the source bands selected in the read parameters.
+	 * 
+	 * @param param
+	 * 		The read parameters.
+	 * @return
+	 * 		A raster of a single row.
+	 */
+	private WritableRaster createRowRaster(ImageReadParam param) {
+		return selectSourceBands(param, newRowRaster());
+	}
+
+	/**
+	 * Get the raster of the buffer that image rows are decoded into, like
+	 * createRowRaster, but reuse the row raster of the previous read if the
+	 * rows are of the same size. Only to be used on the calling thread.
+	 * 
+	 * @param param
+	 * 		The read parameters.
+	 * @return
+	 * 		A raster of a single row.
+	 */
+	private WritableRaster rowRaster(ImageReadParam param) {
+		if (rowRaster == null || rowRaster.getWidth() != header.getWidth()
+				|| rowRaster.getNumBands() != header.getDepth()
+				|| rowRaster.getDataBuffer().getDataType() != (header.isWide()
+						? DataBuffer.TYPE_USHORT : DataBuffer.TYPE_BYTE)) {
+			rowRaster = newRowRaster();
+		}
+		return selectSourceBands(param, rowRaster);
+	}
+
+	private WritableRaster newRowRaster() {
+		int inputBands = header.getDepth();
 		int[] bandOffsets = new int[inputBands];
 		for (int i = 0; i < inputBands; i++) {
 			bandOffsets[i] = i;
 		}
-		int bytesPerRow = header.getWidth() * inputBands;
-		DataBufferByte rowDB = new DataBufferByte(bytesPerRow);
-		WritableRaster rowRas = Raster.createInterleavedRaster(rowDB,
-				header.getWidth(), 1, bytesPerRow, inputBands, bandOffsets,
-				new Point(0, 0));
+		int samplesPerRow = header.getWidth() * inputBands;
+		DataBuffer rowDB = header.isWide()
+				? new DataBufferUShort(samplesPerRow)
+				: new DataBufferByte(samplesPerRow);
+		return Raster.createInterleavedRaster(rowDB, header.getWidth(), 1,
+				samplesPerRow, inputBands, bandOffsets, new Point(0, 0));
+	}
 
-		WritableRaster imRas = dst.getWritableTile(0, 0);
+	private WritableRaster selectSourceBands(ImageReadParam param,
+			WritableRaster rowRas) {
 
 		// Create a child raster exposing only the desired source bands
 		if (param.getSourceBands() != null) {
 			rowRas = rowRas.createWritableChild(0, 0, header.getWidth(),
 					1, 0, 0, param.getSourceBands());
 		}
+		return rowRas;
+	}
 
-		// Create a child raster exposing only the desired dest bands
-		if (param.getDestinationBands() != null) {
-			imRas = imRas.createWritableChild(0, 0, imRas.getWidth(),
-					imRas.getHeight(), 0, 0, param.getDestinationBands());
+	/**
+	 * Test if decoded rows of 8 bit samples can be copied into the data
+	 * buffer of the destination raster with the samples of each pixel put in
+	 * another order, as in images of TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR.
+	 */
+	private static boolean isSwizzleCompatible(ImageReadParam param,
+			WritableRaster imRas, int inputBands) {
+		if (param.getSourceBands() != null
+				|| param.getDestinationBands() != null) {
+			return false;
 		}
+		if (!(imRas.getDataBuffer() instanceof DataBufferByte)
+				|| imRas.getDataBuffer().getNumBanks() != 1
+				|| !(imRas.getSampleModel() instanceof PixelInterleavedSampleModel)) {
+			return false;
+		}
+		PixelInterleavedSampleModel sm =
+				(PixelInterleavedSampleModel) imRas.getSampleModel();
+		return sm.getNumBands() == inputBands
+				&& sm.getPixelStride() == inputBands;
+	}
 
-		rasterData(param, sourceRegion, rowDB, rowRas, imRas);
+	/**
+	 * Test if decoded rows of 8 bit samples can be packed into the int data
+	 * buffer of the destination raster, as in images of TYPE_INT_RGB and
+	 * TYPE_INT_ARGB: each sample must take 8 bits of the int.
+	 */
+	private static boolean isPackedIntCompatible(ImageReadParam param,
+			WritableRaster imRas, int inputBands) {
+		if (param.getSourceBands() != null
+				|| param.getDestinationBands() != null) {
+			return false;
+		}
+		if (!(imRas.getDataBuffer() instanceof DataBufferInt)
+				|| !(imRas.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+			return false;
+		}
+		SinglePixelPackedSampleModel sm =
+				(SinglePixelPackedSampleModel) imRas.getSampleModel();
+		if (sm.getNumBands() != inputBands) {
+			return false;
+		}
+		int[] masks = sm.getBitMasks();
+		int[] offsets = sm.getBitOffsets();
+		for (int i = 0; i < inputBands; i++) {
+			if (masks[i] != 0xff << offsets[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-		return dst;
+	/**
+	 * Test if decoded rows can be copied straight into the data buffer of the
+	 * destination raster. This is the case when no band selection is done and
+	 * the destination is a single bank raster of the same data type as the
+	 * decoded rows that uses the same interleaved pixel layout.
+	 * 
+	 * @param param
+	 * 		The read parameters.
+	 * @param imRas
+	 * 		The destination raster.
+	 * @param dataType
+	 * 		The data type of the decoded rows.
+	 * @param inputBands
+	 * 		The number of bands in the image data.
+	 * @return
+	 * 		True if rows can be bulk copied into the destination.
+	 */
+	private static boolean isDirectCopyCompatible(ImageReadParam param,
+			WritableRaster imRas, int dataType, int inputBands) {
+		if (param.getSourceBands() != null
+				|| param.getDestinationBands() != null) {
+			return false;
+		}
+		if (imRas.getDataBuffer().getDataType() != dataType
+				|| !(imRas.getDataBuffer() instanceof DataBufferByte
+						|| imRas.getDataBuffer() instanceof DataBufferUShort)
+				|| imRas.getDataBuffer().getNumBanks() != 1
+				|| !(imRas.getSampleModel() instanceof PixelInterleavedSampleModel)) {
+			return false;
+		}
+		PixelInterleavedSampleModel sm =
+				(PixelInterleavedSampleModel) imRas.getSampleModel();
+		if (sm.getNumBands() != inputBands
+				|| sm.getPixelStride() != inputBands) {
+			return false;
+		}
+		int[] bandOffsets = sm.getBandOffsets();
+		for (int i = 0; i < inputBands; i++) {
+			if (bandOffsets[i] != i) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Test if the packed rows of a raw bitmap can be copied into the data
+	 * buffer of the destination raster, i.e. no band selection is done and
+	 * the destination raster packs one bit per pixel, like the rasters of
+	 * TYPE_BYTE_BINARY images.
+	 * 
+	 * @param param
+	 * 		The read parameters.
+	 * @param imRas
+	 * 		The destination raster.
+	 * @return
+	 * 		True if packed rows can be copied into the destination.
+	 */
+	private static boolean isPackedCopyCompatible(ImageReadParam param,
+			WritableRaster imRas) {
+		return param.getSourceBands() == null
+				&& param.getDestinationBands() == null
+				&& imRas.getDataBuffer() instanceof DataBufferByte
+				&& imRas.getDataBuffer().getNumBanks() == 1
+				&& imRas.getSampleModel() instanceof MultiPixelPackedSampleModel
+				&& ((MultiPixelPackedSampleModel) imRas.getSampleModel())
+						.getPixelBitStride() == 1;
+	}
+
+	/**
+	 * Decode the rows of a raw image in a file in parallel. The rows of the
+	 * source region are split into bands that are decoded on the common 
+	 * fork-join pool, each with its own row buffer and mapping of the raster,
+	 * into disjoint rows of the destination raster. The bands are forked and
+	 * joined, so a calling thread that is a worker of the pool itself helps
+	 * to decode them rather than blocking.
+	 * 
+	 * Progress is reported on the calling thread as bands are done, in the
+	 * order of the bands. If a band fails the others are stopped, and the
+	 * error is thrown once no band writes into the destination anymore.
+	 * 
+	 * @param parallelism
+	 * 		The maximum number of bands.
+	 * @return
+	 * 		False if reading was aborted.
+	 * @throws IOException
+	 */
+	private boolean rasterDataParallel(ImageReadParam param,
+			Rectangle srcRegion, BufferedImage dst, WritableRaster imRas,
+			boolean directCopy, boolean packedCopy, int parallelism)
+			throws IOException {
+
+		// Split the rows that end up in the destination evenly, so bands
+		// start at a row that is part of the subsampling.
+		int ySub = param.getSourceYSubsampling();
+		int rows = (srcRegion.height + ySub - 1) / ySub;
+		int bands = Math.min(parallelism, Math.max(1, rows / MIN_BAND_ROWS));
+		if (bands == 1) {
+			return rasterData(param, srcRegion, rowRaster(param),
+					mappedRaster(), dst, imRas, directCopy, packedCopy,
+					srcRegion.y, srcRegion.y + srcRegion.height);
+		}
+
+		// Build the lookup tables cached on the header before the bands
+		// are decoded, rather than in each of them.
+		if (header.isWide()) {
+			header.getWideSampleTable();
+		} else {
+			header.getSampleTable();
+		}
+
+		int lastRow = srcRegion.y + srcRegion.height;
+		int[] bandRows = new int[bands + 1];
+		for (int i = 0; i <= bands; i++) {
+			bandRows[i] = Math.min(lastRow,
+					srcRegion.y + (int) ((long) rows * i / bands) * ySub);
+		}
+		// A band that fails requests an abort, which stops the other bands
+		// at their next row.
+		boolean[] done = new boolean[bands];
+		Throwable[] errors = new Throwable[bands];
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(bands);
+		for (int i = 0; i < bands; i++) {
+			int band = i;
+			tasks.add(ForkJoinTask.adapt(() -> {
+				try {
+					done[band] = rasterData(param, srcRegion,
+							createRowRaster(param),
+							new NetpbmMappedRaster(channel, header), null,
+							imRas, directCopy, packedCopy, bandRows[band],
+							bandRows[band + 1]);
+				} catch (Throwable e) {
+					errors[band] = e;
+					abort();
+				}
+			}).fork());
+		}
+
+		boolean complete = true;
+		Throwable error = null;
+		for (int i = 0; i < bands; i++) {
+			tasks.get(i).quietlyJoin();
+			if (error == null) {
+				error = errors[i];
+			}
+			if (!done[i]) {
+				complete = false;
+			} else if (error == null) {
+				reportProgress(dst, param, srcRegion, imRas, bandRows[i],
+						bandRows[i + 1], 100.0f * (i + 1) / bands);
+			}
+		}
+		if (error instanceof IOException) {
+			throw (IOException) error;
+		}
+		if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		}
+		if (error instanceof Error) {
+			throw (Error) error;
+		}
+		return complete;
+	}
+
+	/**
+	 * Report the progress of reading an image to the listeners, together
+	 * with the rows of the destination that have been updated.
+	 * 
+	 * @param fromRow
+	 * 		The first source row that was decoded since the last report.
+	 * @param toRow
+	 * 		The row after the last source row that was decoded.
+	 * @param percentageDone
+	 * 		The percentage of the image that has been read.
+	 */
+	private void reportProgress(BufferedImage dst, ImageReadParam param,
+			Rectangle srcRegion, WritableRaster imRas, int fromRow, int toRow,
+			float percentageDone) {
+		int ySub = param.getSourceYSubsampling();
+		int offsetY = param.getDestinationOffset().y;
+		// The destination rows of the subsampled source rows.
+		int fromY = Math.max(imRas.getMinY(), offsetY
+				+ (Math.max(0, fromRow - srcRegion.y) + ySub - 1) / ySub);
+		int toY = Math.min(imRas.getMinY() + imRas.getHeight(), offsetY
+				+ (Math.max(0, toRow - srcRegion.y) + ySub - 1) / ySub);
+		int first = firstColumn(param, imRas);
+		int last = lastColumn(param, srcRegion, imRas);
+		if (fromY < toY && first < last) {
+			int[] bands = param.getDestinationBands();
+			if (bands == null) {
+				bands = new int[imRas.getNumBands()];
+				for (int i = 0; i < bands.length; i++) {
+					bands[i] = i;
+				}
+			}
+			processImageUpdate(dst, param.getDestinationOffset().x + first,
+					fromY, last - first, toY - fromY, 1, 1, bands);
+		}
+		processImageProgress(percentageDone);
 	}
 
-	private void rasterData(ImageReadParam param, Rectangle srcRegion,
-			DataBufferByte rowDB, WritableRaster rowRas,
-			WritableRaster imRas) throws IIOException {
+	/**
+	 * Decode rows of the image into the destination raster.
+	 * 
+	 * @param rowRas
+	 * 		The raster of the buffer to decode rows into.
+	 * @param mapped
+	 * 		The mapped raster of the image, or null to read from the stream.
+	 * @param dst
+	 * 		The destination image for progress reports, or null if no 
+	 * 		progress should be reported.
+	 * @param fromRow
+	 * 		The first row to decode, the first row of the source region or a
+	 * 		row part of the subsampling following it.
+	 * @param toRow
+	 * 		The row after the last row to decode.
+	 * @return
+	 * 		False if reading was aborted.
+	 * @throws IOException
+	 */
+	private boolean rasterData(ImageReadParam param, Rectangle srcRegion,
+			WritableRaster rowRas, NetpbmMappedRaster mapped,
+			BufferedImage dst, WritableRaster imRas, boolean directCopy,
+			boolean packedCopy, int fromRow, int toRow) throws IOException {
+
+		DataBuffer rowDB = rowRas.getDataBuffer();
+
+		// Get the array of the row buffer that rows are decoded into.
+		byte[] byteRow = null;
+		short[] shortRow = null;
+		if (rowDB instanceof DataBufferUShort) {
+			shortRow = ((DataBufferUShort) rowDB).getData();
+		} else {
+			byteRow = ((DataBufferByte) rowDB).getData();
+		}
+		// Packed rows of raw bitmaps are read as they are.
+		byte[] packedRow = packedCopy ? new byte[header.getBytesPerRow()]
+				: null;
+
+		// Rows of a mapped raster that need no scaling are copied straight
+		// from the mapped file into the destination.
+		boolean mappedCopy = mapped != null && directCopy
+				&& param.getSourceXSubsampling() == 1 && !header.isBitmap()
+				&& (shortRow != null ? header.getWideSampleTable() == null
+						: header.getSampleTable() == null);
+
+		// Rows can also be written into the data buffer of the destination
+		// with the samples reordered or packed into ints, for destinations
+		// like TYPE_3BYTE_BGR and TYPE_INT_RGB.
+		boolean swizzleCopy = !directCopy && byteRow != null
+				&& !header.isBitmap()
+				&& isSwizzleCompatible(param, imRas, header.getDepth());
+		boolean intCopy = !directCopy && byteRow != null
+				&& !header.isBitmap()
+				&& isPackedIntCompatible(param, imRas, header.getDepth());
+
+		// Rows of raw images in streams that are at least as large as the read
+		// buffer and need no scaling are read straight into the destination.
+		boolean streamCopy = mapped == null && header.isRaw() && directCopy
+				&& byteRow != null && !header.isBitmap()
+				&& header.getSampleTable() == null
+				&& header.getBytesPerRow() >= stream.getBufferSize()
+				&& srcRegion.x == 0 && srcRegion.width == header.getWidth()
+				&& param.getSourceXSubsampling() == 1
+				&& firstColumn(param, imRas) == 0
+				&& lastColumn(param, srcRegion, imRas) == header.getWidth();
+
+		// Only the rows of the source region that are part of the subsampling
+		// and go into the destination are decoded.
+		int ySub = param.getSourceYSubsampling();
+		int offsetY = param.getDestinationOffset().y;
+		int firstDstRow = Math.max(imRas.getMinY() - offsetY,
+				(Math.max(0, fromRow - srcRegion.y) + ySub - 1) / ySub);
+		int lastDstRow = Math.min((srcRegion.height + ySub - 1) / ySub,
+				imRas.getMinY() + imRas.getHeight() - offsetY);
+		int firstRow = srcRegion.y + firstDstRow * ySub;
+		int lastRow = Math.min(toRow, srcRegion.y + lastDstRow * ySub);
 
-		for (int srcY = 0; srcY < header.getHeight(); srcY++) {
+		// The row the stream is positioned at. Rows in raw images have a fixed
+		// size, so skip directly to the first row to decode. Plain images are
+		// tokenized from the start of the raster.
+		int streamRow = firstRow;
+		if (mapped == null && header.isRaw()) {
+			stream.seek(header.getRasterOffset()
+					+ (long) firstRow * header.getBytesPerRow());
+		} else if (mapped == null) {
+			stream.seek(header.getRasterOffset());
+			streamRow = 0;
+		}
+		int reportedRow = firstRow;
+
+		for (int srcY = firstRow; srcY < lastRow; srcY += ySub) {
+
+			if (abortRequested()) {
+				return false;
+			}
+			if (dst != null && srcY - reportedRow >= UPDATE_ROWS) {
+				reportProgress(dst, param, srcRegion, imRas, reportedRow, srcY,
+						100.0f * (srcY - srcRegion.y) / srcRegion.height);
+				reportedRow = srcY;
+			}
 
-			NetpbmUtil.readRow(stream, header, rowDB.getData(), srcY);
+			// Determine where the row will go in the destination
+			int dstY = offsetY + (srcY - srcRegion.y) / ySub;
 
-			// Reject rows that lie outside the source region,
-			// or which aren't part of the subsampling
-			if (srcY < srcRegion.y || srcY >= srcRegion.y + srcRegion.height ||
-					(srcY - srcRegion.y) % param.getSourceYSubsampling() == 0) {
-				// Determine where the row will go in the destination
-				int dstY = param.getDestinationOffset().y +
-						(srcY - srcRegion.y) / param.getSourceYSubsampling();
-				if (dstY >= imRas.getMinY()
-						&& dstY < imRas.getMinY() + imRas.getHeight()) {
+			// Get the stream to the row: skip the rows left out by the
+			// subsampling by seeking in raw images, or by tokenizing them
+			// in plain images.
+			if (mapped == null) {
+				if (header.isRaw()) {
+					if (streamRow != srcY) {
+						stream.seek(header.getRasterOffset()
+								+ (long) srcY * header.getBytesPerRow());
+					}
+				} else {
+					while (streamRow < srcY) {
+						NetpbmUtil.skipRow(stream, header, streamRow++);
+					}
+				}
+				streamRow = srcY + 1;
+			}
+
+			if (streamCopy) {
+				byte[] data = ((DataBufferByte) imRas.getDataBuffer())
+						.getData();
+				int pos = dataOffset(imRas, param.getDestinationOffset().x,
+						dstY);
+				int numRead = Math.max(0, stream.read(data, pos,
+						header.getBytesPerRow()));
+				if (numRead < header.getBytesPerRow()) {
+					checkRow(false, strict, srcY);
+					Arrays.fill(data, pos + numRead,
+							pos + header.getBytesPerRow(), (byte) 0);
+				}
+				continue;
+			}
+			// Rows of a mapped raster are only taken when they are needed.
+			// Truncated rows are detected before they are decoded.
+			boolean complete;
+			ByteBuffer src = null;
+			if (mapped == null) {
+				if (packedRow != null) {
+					complete = NetpbmUtil.readPackedRow(stream, packedRow,
+							srcY);
+				} else if (shortRow != null) {
+					complete = NetpbmUtil.readRow(stream, header, shortRow,
+							srcY);
+				} else {
+					complete = NetpbmUtil.readRow(stream, header, byteRow,
+							srcY);
+				}
+			} else {
+				src = mapped.row(srcY);
+				complete = src.remaining() == header.getBytesPerRow();
+			}
+			checkRow(complete, strict, srcY);
+
+			if (packedRow != null) {
+				if (src != null) {
+					NetpbmUtil.readPackedRow(src, packedRow);
+				}
+				rasterRowPacked(param, srcRegion, packedRow, imRas, dstY);
+			} else if (src != null && mappedCopy
+					&& src.remaining() == header.getBytesPerRow()) {
+				rasterRowMapped(param, srcRegion, src, imRas, dstY);
+			} else {
+				if (src != null) {
+					if (shortRow != null) {
+						NetpbmUtil.readRow(src, header, shortRow);
+					} else {
+						NetpbmUtil.readRow(src, header, byteRow);
+					}
+				}
+				if (directCopy) {
+					rasterRowDirect(param, srcRegion,
+							shortRow != null ? shortRow : byteRow, imRas, dstY);
+				} else if (swizzleCopy) {
+					rasterRowSwizzled(param, srcRegion, byteRow, imRas, dstY);
+				} else if (intCopy) {
+					rasterRowPackedInt(param, srcRegion, byteRow, imRas, dstY);
+				} else {
 					rasterRow(param, srcRegion, rowRas, imRas, dstY);
 				}
 			}
 		}
+		if (dst != null) {
+			reportProgress(dst, param, srcRegion, imRas, reportedRow, lastRow,
+					100.0f);
+		}
+		return true;
 	}
 
 	private void rasterRow(ImageReadParam param, Rectangle srcRegion,
@@ -192,20 +1452,346 @@ public class PbmImageReader extends ImageReader {
 		// Create an int[] that can a single pixel
 		int[] pixel = rowRas.getPixel(0, 0, (int[]) null);
 
-		// Copy each (subsampled) source pixel into imRas
-		for (int srcX = srcRegion.x; srcX < srcRegion.x
-				+ srcRegion.width; srcX++) {
-			if ((srcX - srcRegion.x) % param.getSourceXSubsampling() == 0) {
-				int dstX = param.getDestinationOffset().x +
-						(srcX - srcRegion.x) / param.getSourceXSubsampling();
-				if (dstX >= imRas.getMinX()
-						&& dstX < imRas.getMinX() + imRas.getWidth()) {
-					// Copy the pixel, sub-banding is done automatically
-					rowRas.getPixel(srcX, 0, pixel);
-					imRas.setPixel(dstX, dstY, pixel);
+		int xSub = param.getSourceXSubsampling();
+		int first = firstColumn(param, imRas);
+		int last = lastColumn(param, srcRegion, imRas);
+
+		// Copy each subsampled source pixel that lies within imRas
+		for (int i = first; i < last; i++) {
+			// Copy the pixel, sub-banding is done automatically
+			rowRas.getPixel(srcRegion.x + i * xSub, 0, pixel);
+			imRas.setPixel(param.getDestinationOffset().x + i, dstY, pixel);
+		}
+	}
+
+	/**
+	 * Copy a decoded row straight into the data buffer of the destination
+	 * raster. Only to be used if isDirectCopyCompatible holds for the
+	 * destination raster. Without horizontal subsampling the row is copied
+	 * in one go, else the (subsampled) pixels are copied one by one.
+	 * 
+	 * @param row
+	 * 		The decoded row, a byte[] or short[] that matches the data
+	 * 		buffer of the destination raster.
+	 */
+	private void rasterRowDirect(ImageReadParam param, Rectangle srcRegion,
+			Object row, WritableRaster imRas, int dstY) {
+
+		int bands = imRas.getNumBands();
+		int xSub = param.getSourceXSubsampling();
+
+		int first = firstColumn(param, imRas);
+		int last = lastColumn(param, srcRegion, imRas);
+		if (first >= last) {
+			return;
+		}
+
+		DataBuffer db = imRas.getDataBuffer();
+
+		int srcPos = (srcRegion.x + first * xSub) * bands;
+		int dstPos = dataOffset(imRas,
+				param.getDestinationOffset().x + first, dstY);
+		int count = last - first;
+
+		if (xSub == 1) {
+			Object data = db instanceof DataBufferUShort
+					? ((DataBufferUShort) db).getData()
+					: ((DataBufferByte) db).getData();
+			System.arraycopy(row, srcPos, data, dstPos, count * bands);
+		} else if (db instanceof DataBufferUShort) {
+			short[] src = (short[]) row;
+			short[] data = ((DataBufferUShort) db).getData();
+			int srcStep = xSub * bands;
+			for (int i = 0; i < count; i++) {
+				for (int b = 0; b < bands; b++) {
+					data[dstPos + b] = src[srcPos + b];
 				}
+				dstPos += bands;
+				srcPos += srcStep;
+			}
+		} else if (bands == 1) {
+			byte[] src = (byte[]) row;
+			byte[] data = ((DataBufferByte) db).getData();
+			for (int i = 0; i < count; i++) {
+				data[dstPos++] = src[srcPos];
+				srcPos += xSub;
+			}
+		} else {
+			byte[] src = (byte[]) row;
+			byte[] data = ((DataBufferByte) db).getData();
+			int srcStep = xSub * bands;
+			for (int i = 0; i < count; i++) {
+				for (int b = 0; b < bands; b++) {
+					data[dstPos + b] = src[srcPos + b];
+				}
+				dstPos += bands;
+				srcPos += srcStep;
+			}
+		}
+	}
+
+	/**
+	 * Copy a decoded row into the byte data buffer of the destination raster,
+	 * putting the samples of each pixel in the order of the destination, f.i.
+	 * for images of TYPE_3BYTE_BGR. Only to be used if isSwizzleCompatible
+	 * holds for the destination raster.
+	 * 
+	 * @param row
+	 * 		The decoded row.
+	 */
+	private void rasterRowSwizzled(ImageReadParam param, Rectangle srcRegion,
+			byte[] row, WritableRaster imRas, int dstY) {
+
+		int bands = imRas.getNumBands();
+		int xSub = param.getSourceXSubsampling();
+
+		int first = firstColumn(param, imRas);
+		int last = lastColumn(param, srcRegion, imRas);
+		if (first >= last) {
+			return;
+		}
+
+		int[] offsets = ((PixelInterleavedSampleModel) imRas.getSampleModel())
+				.getBandOffsets();
+		byte[] data = ((DataBufferByte) imRas.getDataBuffer()).getData();
+
+		// The offset of a pixel includes the offset of its first band.
+		int srcPos = (srcRegion.x + first * xSub) * bands;
+		int dstPos = dataOffset(imRas,
+				param.getDestinationOffset().x + first, dstY) - offsets[0];
+		int srcStep = xSub * bands;
+		for (int i = first; i < last; i++) {
+			for (int b = 0; b < bands; b++) {
+				data[dstPos + offsets[b]] = row[srcPos + b];
 			}
+			dstPos += bands;
+			srcPos += srcStep;
 		}
 	}
 
+	/**
+	 * Pack the pixels of a decoded row into the int data buffer of the
+	 * destination raster, f.i. for images of TYPE_INT_RGB. Only to be used
+	 * if isPackedIntCompatible holds for the destination raster.
+	 * 
+	 * @param row
+	 * 		The decoded row.
+	 */
+	private void rasterRowPackedInt(ImageReadParam param, Rectangle srcRegion,
+			byte[] row, WritableRaster imRas, int dstY) {
+
+		int bands = imRas.getNumBands();
+		int xSub = param.getSourceXSubsampling();
+
+		int first = firstColumn(param, imRas);
+		int last = lastColumn(param, srcRegion, imRas);
+		if (first >= last) {
+			return;
+		}
+
+		SinglePixelPackedSampleModel sm =
+				(SinglePixelPackedSampleModel) imRas.getSampleModel();
+		int[] shifts = sm.getBitOffsets();
+		DataBuffer db = imRas.getDataBuffer();
+		int[] data = ((DataBufferInt) db).getData();
+
+		int srcPos = (srcRegion.x + first * xSub) * bands;
+		int dstPos = db.getOffset() + sm.getOffset(
+				param.getDestinationOffset().x + first
+						- imRas.getSampleModelTranslateX(),
+				dstY - imRas.getSampleModelTranslateY());
+		int srcStep = xSub * bands;
+		for (int i = first; i < last; i++) {
+			int pixel = 0;
+			for (int b = 0; b < bands; b++) {
+				pixel |= (row[srcPos + b] & 0xff) << shifts[b];
+			}
+			data[dstPos++] = pixel;
+			srcPos += srcStep;
+		}
+	}
+
+	/**
+	 * Copy a row of a memory mapped raster straight into the data buffer of
+	 * the destination raster. Only to be used if isDirectCopyCompatible holds
+	 * for the destination raster, the samples need no scaling and there is no
+	 * horizontal subsampling.
+	 * 
+	 * @param src
+	 * 		The buffer holding the row, positioned at the start of the row.
+	 */
+	private void rasterRowMapped(ImageReadParam param, Rectangle srcRegion,
+			ByteBuffer src, WritableRaster imRas, int dstY) {
+
+		int bands = imRas.getNumBands();
+
+		int first = firstColumn(param, imRas);
+		int last = lastColumn(param, srcRegion, imRas);
+		if (first >= last) {
+			return;
+		}
+
+		DataBuffer db = imRas.getDataBuffer();
+
+		int srcPos = (srcRegion.x + first) * bands;
+		int dstPos = dataOffset(imRas,
+				param.getDestinationOffset().x + first, dstY);
+		int count = (last - first) * bands;
+
+		if (db instanceof DataBufferUShort) {
+			src.position(src.position() + srcPos * 2);
+			src.asShortBuffer().get(((DataBufferUShort) db).getData(),
+					dstPos, count);
+		} else {
+			src.position(src.position() + srcPos);
+			src.get(((DataBufferByte) db).getData(), dstPos, count);
+		}
+	}
+
+	/**
+	 * Copy a packed row of a raw bitmap into the data buffer of the 
+	 * destination raster. Only to be used if isPackedCopyCompatible holds for
+	 * the destination raster. Whole bytes are copied when the source and 
+	 * destination bits line up and there is no horizontal subsampling, else
+	 * the (subsampled) bits are copied one by one.
+	 * 
+	 * @param row
+	 * 		The packed row, with the bits inverted (0 is black).
+	 */
+	private void rasterRowPacked(ImageReadParam param, Rectangle srcRegion,
+			byte[] row, WritableRaster imRas, int dstY) {
+
+		int xSub = param.getSourceXSubsampling();
+
+		int first = firstColumn(param, imRas);
+		int last = lastColumn(param, srcRegion, imRas);
+		if (first >= last) {
+			return;
+		}
+
+		MultiPixelPackedSampleModel sm =
+				(MultiPixelPackedSampleModel) imRas.getSampleModel();
+		DataBuffer db = imRas.getDataBuffer();
+		byte[] data = ((DataBufferByte) db).getData();
+
+		int rowStart = db.getOffset() + sm.getScanlineStride()
+				* (dstY - imRas.getSampleModelTranslateY());
+		int srcBit = srcRegion.x + first * xSub;
+		int dstBit = sm.getDataBitOffset() + param.getDestinationOffset().x
+				+ first - imRas.getSampleModelTranslateX();
+		int count = last - first;
+
+		if (xSub == 1 && (srcBit & 7) == 0 && (dstBit & 7) == 0) {
+			int bytes = count / 8;
+			System.arraycopy(row, srcBit >> 3, data, rowStart + (dstBit >> 3),
+					bytes);
+			srcBit += bytes * 8;
+			dstBit += bytes * 8;
+			count -= bytes * 8;
+		}
+		for (int i = 0; i < count; i++) {
+			int bit = row[srcBit >> 3] >> (7 - (srcBit & 7)) & 1;
+			int pos = rowStart + (dstBit >> 3);
+			int shift = 7 - (dstBit & 7);
+			data[pos] = (byte) (data[pos] & ~(1 << shift) | bit << shift);
+			srcBit += xSub;
+			dstBit++;
+		}
+	}
+
+	/**
+	 * Determine the first (subsampled) source pixel of a row that goes into
+	 * the destination, i.e. the first pixel for which dstX lies within the
+	 * bounds of the destination raster.
+	 */
+	private static int firstColumn(ImageReadParam param, WritableRaster imRas) {
+		return Math.max(0, imRas.getMinX() - param.getDestinationOffset().x);
+	}
+
+	/**
+	 * Determine the (subsampled) source pixel following the last pixel of a
+	 * row that goes into the destination.
+	 */
+	private static int lastColumn(ImageReadParam param, Rectangle srcRegion,
+			WritableRaster imRas) {
+		int xSub = param.getSourceXSubsampling();
+		return Math.min((srcRegion.width + xSub - 1) / xSub,
+				imRas.getMinX() + imRas.getWidth()
+						- param.getDestinationOffset().x);
+	}
+
+	/**
+	 * Check the current image before memory is allocated for it: its samples
+	 * must fit in the array of a raster and it may not have more pixels than
+	 * the maximum of the read parameters, if any. In strict mode the input
+	 * must be long enough to hold the image data, if its length is known.
+	 * 
+	 * @param param
+	 * 		The read parameters.
+	 * @param width
+	 * 		The width of the image or raster that will be created, or 0.
+	 * @param height
+	 * 		The height of the image or raster that will be created, or 0.
+	 * @param bands
+	 * 		The number of bands of the image or raster.
+	 * @return
+	 * 		True if the image is read in strict mode.
+	 * @throws IIOException
+	 * 		If the image is too large or the input too short.
+	 */
+	private boolean checkImage(ImageReadParam param, long width, long height,
+			int bands) throws IIOException {
+		PbmImageReadParam pbmParam = param instanceof PbmImageReadParam
+				? (PbmImageReadParam) param : null;
+		long maxPixels = pbmParam != null ? pbmParam.getMaxPixels()
+				: Long.MAX_VALUE;
+		if (width * height * bands > Integer.MAX_VALUE
+				|| width * height > maxPixels) {
+			throw new IIOException("Image too large: " + width + "x" + height
+					+ "x" + bands);
+		}
+		boolean strict = pbmParam != null && pbmParam.isStrict();
+		long length = stream.length();
+		long available = length - header.getRasterOffset();
+		if (strict && length >= 0
+				&& available < header.getMinRasterLength()) {
+			throw new IIOException("Image data truncated: "
+					+ header.getMinRasterLength() + " bytes expected, "
+					+ available + " available");
+		}
+		return strict;
+	}
+
+	/**
+	 * Fail on a row of which the image data is truncated when reading in
+	 * strict mode. In lenient mode the row decoders set the missing samples
+	 * to 0.
+	 * 
+	 * @param complete
+	 * 		False if the image data ended before the end of the row.
+	 * @param strict
+	 * 		True if reading in strict mode.
+	 * @param lineNo
+	 * 		The number of the row.
+	 * @throws IIOException
+	 */
+	private static void checkRow(boolean complete, boolean strict, int lineNo)
+			throws IIOException {
+		if (!complete && strict) {
+			throw new IIOException("Image data truncated in line " + lineNo);
+		}
+	}
+
+	/**
+	 * Get the position of a pixel in the data array of a raster that uses a
+	 * PixelInterleavedSampleModel.
+	 */
+	private static int dataOffset(WritableRaster imRas, int x, int y) {
+		PixelInterleavedSampleModel sm =
+				(PixelInterleavedSampleModel) imRas.getSampleModel();
+		return imRas.getDataBuffer().getOffset() + sm.getOffset(
+				x - imRas.getSampleModelTranslateX(),
+				y - imRas.getSampleModelTranslateY());
+	}
+
 }
@@ -1,6 +1,10 @@
 package org.scrivo.imageio.netpbm;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Locale;
 
 import javax.imageio.ImageReader;
@@ -23,13 +27,18 @@ public class PbmImageReaderSpi extends ImageReaderSpi {
 	private static final String VENDOR_NAME = "scrivo.org";
 	private static final String VERSION = "1.0";
 	private static final String[] NAMES = {
-			"pbm", "PBM", "pgm", "PGM", "ppm", "PPM" };
+			"pbm", "PBM", "pgm", "PGM", "ppm", "PPM", "pam", "PAM" };
 	private static final String[] SUFFIXES = { "pbm", "PBM", "pgm",
-			"PGM", "ppm", "PPM", "pbm.plain", "pgm.plain", "ppm.plain" };
+			"PGM", "ppm", "PPM", "pam", "PAM", "pbm.plain", "pgm.plain",
+			"ppm.plain" };
 	private static final String[] MIME_TYPES = { "image/x-portable-bitmap",
-			"image/x-portable-graymap", "image/x-portable-pixmap" };
-	private static final Class<?>[] INPUT_TYPES = { ImageInputStream.class };
-	private static final String DESCRIPTION = "ImageIO plugin for Netpbm (pbm, pgm, ppm) files.";
+			"image/x-portable-graymap", "image/x-portable-pixmap",
+			"image/x-portable-arbitrarymap" };
+	private static final Class<?>[] INPUT_TYPES = { ImageInputStream.class,
+			File.class, Path.class };
+	private static final String[] WRITER_SPI_NAMES = {
+			PbmImageWriterSpi.class.getName() };
+	private static final String DESCRIPTION = "ImageIO plugin for Netpbm (pbm, pgm, ppm, pam) files.";
 
 	public PbmImageReaderSpi() {
 		super(
@@ -40,15 +49,15 @@ public class PbmImageReaderSpi extends ImageReaderSpi {
 				/* String[] MIMETypes */ MIME_TYPES,
 				/* String readerClassName */ PbmImageReader.class.getName(),
 				/* Class<?>[] inputTypes */ INPUT_TYPES,
-				/* String[] writerSpiNames */ null,
+				/* String[] writerSpiNames */ WRITER_SPI_NAMES,
 				/* boolean supportsStandardStreamMetadataFormat */ false,
 				/* String nativeStreamMetadataFormatName */ null,
 				/* String nativeStreamMetadataFormatClassName */ null,
 				/* String[] extraStreamMetadataFormatNames */ null,
 				/* String[] extraStreamMetadataFormatClassNames */ null,
-				/* boolean supportsStandardImageMetadataFormat */ false,
-				/* String nativeImageMetadataFormatName */ null,
-				/* String nativeImageMetadataFormatClassName */ null,
+				/* boolean supportsStandardImageMetadataFormat */ true,
+				/* String nativeImageMetadataFormatName */ PbmMetadataFormat.NATIVE_FORMAT_NAME,
+				/* String nativeImageMetadataFormatClassName */ PbmMetadataFormat.class.getName(),
 				/* String[] extraImageMetadataFormatNames */ null,
 				/* String[] extraImageMetadataFormatClassNames */ null);
 	}
@@ -64,22 +73,46 @@ public class PbmImageReaderSpi extends ImageReaderSpi {
 	 * plug-in can understand, and second, whether the file contents appear to 
 	 * be in the format handled by the plug-in. It must leave its input in the 
 	 * same state as it was when it was passed in.
+	 * 
+	 * Note that a PAM signature (P7) must be followed by a line break, to
+	 * distinguish PAM images from XV thumbnails ("P7 332").
+	 * 
+	 * Files (File or Path) are accepted as input too, the reader maps the
+	 * raster of raw images in files into memory.
 	 */
 	@Override
 	public boolean canDecodeInput(Object input) {
-		if (!(input instanceof ImageInputStream)) {
-			return false;
-		}
-		ImageInputStream stream = (ImageInputStream) input;
-		byte[] b = new byte[2];
+		byte[] b = new byte[3];
 		try {
-			stream.mark();
-			stream.readFully(b);
-			stream.reset();
+			if (input instanceof ImageInputStream) {
+				ImageInputStream stream = (ImageInputStream) input;
+				stream.mark();
+				try {
+					stream.readFully(b);
+				} finally {
+					stream.reset();
+				}
+			} else if (input instanceof File || input instanceof Path) {
+				Path path = input instanceof File ? ((File) input).toPath()
+						: (Path) input;
+				try (InputStream is = Files.newInputStream(path)) {
+					if (is.read(b) != b.length) {
+						return false;
+					}
+				}
+			} else {
+				return false;
+			}
 		} catch (IOException e) {
 			return false;
 		}
-		return (b[0] == (byte) 'P' && b[1] >= (byte) '1' && b[1] <= (byte) '6');
+		if (b[0] != (byte) 'P') {
+			return false;
+		}
+		if (b[1] == (byte) '7') {
+			return b[2] == (byte) '\n' || b[2] == (byte) '\r';
+		}
+		return b[1] >= (byte) '1' && b[1] <= (byte) '6';
 	}
 
 	@Override
@@ -0,0 +1,79 @@
+package org.scrivo.imageio.netpbm;
+
+import java.util.Locale;
+
+import javax.imageio.ImageWriteParam;
+
+/**
+ * Write parameters for the Netpbm image writer. Next to the standard source
+ * region, subsampling and band selection settings it allows to choose between
+ * the raw (binary) and plain (text) formats and to set the maximum color value
+ * of the image that is written.
+ */
+public class PbmImageWriteParam extends ImageWriteParam {
+
+	private boolean plain = false;
+	private int maxColor = 0;
+
+	/**
+	 * Construct a PbmImageWriteParam using the default settings: raw format
+	 * and a maximum color value that matches the sample size of the source.
+	 */
+	public PbmImageWriteParam() {
+		this(Locale.getDefault());
+	}
+
+	/**
+	 * Construct a PbmImageWriteParam using the default settings.
+	 *
+	 * @param locale
+	 * 		The locale to use, or null.
+	 */
+	public PbmImageWriteParam(Locale locale) {
+		super(locale);
+	}
+
+	/**
+	 * @return
+	 * 		True if the image will be written in the plain (text) format.
+	 */
+	public boolean isPlain() {
+		return plain;
+	}
+
+	/**
+	 * @param plain
+	 * 		True to write the image in the plain (text) format, false to
+	 * 		write it in the raw (binary) format.
+	 */
+	public void setPlain(boolean plain) {
+		this.plain = plain;
+	}
+
+	/**
+	 * @return
+	 * 		The maximum color value for the written image, or 0 if it is
+	 * 		derived from the sample size of the source image.
+	 */
+	public int getMaxColor() {
+		return maxColor;
+	}
+
+	/**
+	 * Set the maximum color value for the written image. Samples of the
+	 * source image are scaled to this value. Use 0 to derive the maximum
+	 * color value from the sample size of the source image. Note that single
+	 * band images with 1 bit samples are written as bitmaps unless a maximum
+	 * color value other than 1 is set.
+	 *
+	 * @param maxColor
+	 * 		The maximum color value (0 or 1 to 65535).
+	 */
+	public void setMaxColor(int maxColor) {
+		if (maxColor < 0 || maxColor > 65535) {
+			throw new IllegalArgumentException("maxColor out of range");
+		}
+		this.maxColor = maxColor;
+	}
+
+}
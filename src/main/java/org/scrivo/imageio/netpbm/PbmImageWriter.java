@@ -0,0 +1,323 @@
+package org.scrivo.imageio.netpbm;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * This class is responsible for writing images to an output stream in one of
+ * the Netpbm file formats. Images are written row by row, so apart from the
+ * source image only a row's worth of memory is used.
+ *
+ * The format is derived from the image: single band images with 1 bit
+ * samples are written as bitmaps (pbm), other single band images as graymaps
+ * (pgm) and three band images as pixmaps (ppm). Images with alpha (two or
+ * four bands) are written as PAM images with the GRAYSCALE_ALPHA or RGB_ALPHA
+ * tuple type. Use a PbmImageWriteParam to select the plain (text) format or a
+ * different maximum color value; PAM images have no plain format.
+ *
+ * Note: this implementation does not include thumbnails and metadata.
+ *
+ * @see <a href="https://docs.oracle.com/javase/8/docs/technotes/guides/imageio/spec/extending.fm1.html">Writing Image I/O Plug-ins</a>
+ */
+public class PbmImageWriter extends ImageWriter {
+
+	ImageOutputStream stream = null;
+
+	protected PbmImageWriter(ImageWriterSpi originatingProvider) {
+		super(originatingProvider);
+	}
+
+	@Override
+	public void setOutput(Object output) {
+		super.setOutput(output);
+		stream = (ImageOutputStream) output;
+	}
+
+	@Override
+	public ImageWriteParam getDefaultWriteParam() {
+		return new PbmImageWriteParam(getLocale());
+	}
+
+	@Override
+	public IIOMetadata getDefaultStreamMetadata(ImageWriteParam param) {
+		return null;
+	}
+
+	@Override
+	public IIOMetadata getDefaultImageMetadata(ImageTypeSpecifier imageType,
+			ImageWriteParam param) {
+		return null;
+	}
+
+	@Override
+	public IIOMetadata convertStreamMetadata(IIOMetadata inData,
+			ImageWriteParam param) {
+		return null;
+	}
+
+	@Override
+	public IIOMetadata convertImageMetadata(IIOMetadata inData,
+			ImageTypeSpecifier imageType, ImageWriteParam param) {
+		return null;
+	}
+
+	@Override
+	public boolean canWriteRasters() {
+		return true;
+	}
+
+	@Override
+	public void write(IIOMetadata streamMetadata, IIOImage image,
+			ImageWriteParam param) throws IOException {
+
+		if (stream == null) {
+			throw new IllegalStateException("PbmImageWriter");
+		}
+		if (image == null) {
+			throw new IllegalArgumentException("image == null");
+		}
+
+		// Palette images and images with premultiplied alpha can't be stored
+		// in a Netpbm image, rasters are written band by band.
+		ImageWriterSpi spi = originatingProvider != null ? originatingProvider
+				: new PbmImageWriterSpi();
+		if (!image.hasRaster()
+				&& !spi.canEncodeImage(image.getRenderedImage())) {
+			throw new IIOException("Image type can't be written as Netpbm"
+					+ " image");
+		}
+
+		if (null == param) {
+			param = getDefaultWriteParam();
+		}
+
+		// Get the source raster, for rendered images other than buffered
+		// images rows are retrieved one at a time.
+		RenderedImage renderedImage = image.getRenderedImage();
+		Raster raster = null;
+		if (image.hasRaster()) {
+			raster = image.getRaster();
+		} else if (renderedImage instanceof BufferedImage) {
+			raster = ((BufferedImage) renderedImage).getRaster();
+		}
+		Rectangle bounds = raster != null ? raster.getBounds()
+				: new Rectangle(renderedImage.getMinX(),
+						renderedImage.getMinY(), renderedImage.getWidth(),
+						renderedImage.getHeight());
+		ColorModel colorModel = image.hasRaster() ? null
+				: renderedImage.getColorModel();
+		int[] sampleSizes = image.hasRaster()
+				? raster.getSampleModel().getSampleSize()
+				: renderedImage.getSampleModel().getSampleSize();
+
+		// Compute the source region and the size of the written image.
+		Rectangle region = bounds;
+		if (param.getSourceRegion() != null) {
+			region = region.intersection(param.getSourceRegion());
+		}
+		int xSub = param.getSourceXSubsampling();
+		int ySub = param.getSourceYSubsampling();
+		region.x += param.getSubsamplingXOffset();
+		region.y += param.getSubsamplingYOffset();
+		region.width -= param.getSubsamplingXOffset();
+		region.height -= param.getSubsamplingYOffset();
+		if (region.isEmpty()) {
+			throw new IIOException("Empty source region");
+		}
+		int width = (region.width + xSub - 1) / xSub;
+		int height = (region.height + ySub - 1) / ySub;
+
+		// Determine the bands to write.
+		int[] sourceBands = param.getSourceBands();
+		if (sourceBands == null) {
+			sourceBands = new int[sampleSizes.length];
+			for (int i = 0; i < sourceBands.length; i++) {
+				sourceBands[i] = i;
+			}
+		}
+		int bands = sourceBands.length;
+		if (bands < 1 || bands > 4) {
+			throw new IIOException("Only images with 1 to 4 bands supported");
+		}
+		// Bands may differ in size (f.i. TYPE_USHORT_565_RGB), the image is
+		// written with the largest sample size.
+		int sampleSize = 0;
+		for (int band : sourceBands) {
+			sampleSize = Math.max(sampleSize, sampleSizes[band]);
+		}
+		if (sampleSize > 16) {
+			throw new IIOException("Only samples up to 16 bits supported");
+		}
+
+		// Create the header of the image to write.
+		PbmImageWriteParam pbmParam = param instanceof PbmImageWriteParam
+				? (PbmImageWriteParam) param : null;
+		boolean plain = pbmParam != null && pbmParam.isPlain();
+		int maxColor = pbmParam != null ? pbmParam.getMaxColor() : 0;
+		NetpbmHeader header = new NetpbmHeader();
+		header.setWidth(width);
+		header.setHeight(height);
+		header.setDepth(bands);
+		if (bands == 2 || bands == 4) {
+			if (plain) {
+				throw new IIOException("Images with alpha can't be written"
+						+ " in the plain format");
+			}
+			header.setSignature(NetpbmSignature.P7);
+			header.setTupleType(bands == 2 ? "GRAYSCALE_ALPHA" : "RGB_ALPHA");
+			header.setMaxColor(maxColor > 0 ? maxColor
+					: (1 << sampleSize) - 1);
+		} else if (bands == 1 && sampleSize == 1 && maxColor <= 1) {
+			header.setSignature(plain ? NetpbmSignature.P1
+					: NetpbmSignature.P4);
+			header.setMaxColor(1);
+		} else {
+			header.setSignature(bands == 3
+					? (plain ? NetpbmSignature.P3 : NetpbmSignature.P6)
+					: (plain ? NetpbmSignature.P2 : NetpbmSignature.P5));
+			header.setMaxColor(maxColor > 0 ? maxColor
+					: (1 << sampleSize) - 1);
+		}
+
+		// Samples need to be scaled if the maxColor of the image differs
+		// from the range of the source samples of a band, and for bitmaps
+		// where the value 0 should be black the samples need to be inverted.
+		int[][] scales = new int[bands][];
+		boolean scale = false;
+		for (int b = 0; b < bands; b++) {
+			int sourceMax = (1 << sampleSizes[sourceBands[b]]) - 1;
+			if (header.isBitmap()) {
+				if (isBlackZero(colorModel)) {
+					scales[b] = new int[] { 1, 0 };
+				}
+			} else if (sourceMax != header.getMaxColor()) {
+				scales[b] = new int[sourceMax + 1];
+				for (int i = 0; i <= sourceMax; i++) {
+					scales[b][i] = (int) (((long) i * header.getMaxColor()
+							+ sourceMax / 2) / sourceMax);
+				}
+			}
+			scale |= scales[b] != null;
+		}
+
+		processImageStarted(0);
+
+		NetpbmUtil.writeHeader(stream, header);
+
+		boolean directWrite = !plain && !scale && xSub == 1
+				&& !header.isBitmap() && sampleSize == 8
+				&& raster != null && param.getSourceBands() == null
+				&& isDirectWriteCompatible(raster, bands);
+
+		int[] pixels = new int[region.width * bands];
+		int[] samples = new int[width * bands];
+		byte[] buf = new byte[plain ? NetpbmUtil.MAX_PLAIN_LINE + 1
+				: header.getBytesPerRow()];
+
+		for (int i = 0; i < height; i++) {
+			if (abortRequested()) {
+				processWriteAborted();
+				return;
+			}
+			int y = region.y + i * ySub;
+			if (directWrite) {
+				writeRowDirect(raster, region.x, y, width * bands);
+			} else {
+				Raster rowRaster = raster != null ? raster
+						: renderedImage.getData(new Rectangle(bounds.x, y,
+								bounds.width, 1));
+				if (param.getSourceBands() != null) {
+					rowRaster = rowRaster.createChild(region.x, y,
+							region.width, 1, region.x, y, sourceBands);
+				}
+				rowRaster.getPixels(region.x, y, region.width, 1, pixels);
+				for (int x = 0; x < width; x++) {
+					for (int b = 0; b < bands; b++) {
+						int sample = pixels[x * xSub * bands + b];
+						samples[x * bands + b] = scales[b] == null ? sample
+								: scales[b][sample];
+					}
+				}
+				NetpbmUtil.writeRow(stream, header, samples, buf);
+			}
+			processImageProgress(100.0f * (i + 1) / height);
+		}
+
+		processImageComplete();
+	}
+
+	/**
+	 * Test if image rows can be written straight from the data buffer of
+	 * the source raster, i.e. the raster is a single bank byte raster with
+	 * its samples interleaved in the same order as in the image file.
+	 */
+	private static boolean isDirectWriteCompatible(Raster raster, int bands) {
+		if (!(raster.getDataBuffer() instanceof DataBufferByte)
+				|| raster.getDataBuffer().getNumBanks() != 1
+				|| !(raster.getSampleModel() instanceof PixelInterleavedSampleModel)) {
+			return false;
+		}
+		PixelInterleavedSampleModel sm =
+				(PixelInterleavedSampleModel) raster.getSampleModel();
+		if (sm.getPixelStride() != bands) {
+			return false;
+		}
+		int[] bandOffsets = sm.getBandOffsets();
+		for (int i = 0; i < bands; i++) {
+			if (bandOffsets[i] != i) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write a row straight from the data buffer of the source raster. Only
+	 * to be used if isDirectWriteCompatible holds for the raster.
+	 */
+	private void writeRowDirect(Raster raster, int x, int y, int length)
+			throws IOException {
+		PixelInterleavedSampleModel sm =
+				(PixelInterleavedSampleModel) raster.getSampleModel();
+		DataBufferByte db = (DataBufferByte) raster.getDataBuffer();
+		int offset = db.getOffset()
+				+ sm.getOffset(x - raster.getSampleModelTranslateX(),
+						y - raster.getSampleModelTranslateY());
+		stream.write(db.getData(), offset, length);
+	}
+
+	/**
+	 * Test if sample value 0 represents black in a bitmap image. This is
+	 * the case unless the color model says otherwise.
+	 */
+	private static boolean isBlackZero(ColorModel colorModel) {
+		if (colorModel instanceof IndexColorModel
+				&& ((IndexColorModel) colorModel).getMapSize() >= 2) {
+			IndexColorModel icm = (IndexColorModel) colorModel;
+			return luminance(icm.getRGB(0)) <= luminance(icm.getRGB(1));
+		}
+		return true;
+	}
+
+	private static int luminance(int rgb) {
+		return ((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587
+				+ (rgb & 0xff) * 114;
+	}
+
+}
@@ -0,0 +1,116 @@
+package org.scrivo.imageio.netpbm;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SampleModel;
+import java.util.Locale;
+
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * The PbmImageWriterSpi class provides information about the writer plug-in,
+ * including the vendor name, plug-in version string and description, format
+ * name, file suffixes associated with the format, MIME types associated with
+ * the format, output destination classes that the plug-in can handle, and the
+ * ImageReaderSpis of plug-ins that are able to interoperate specially with the
+ * writer. It also must provide an implementation of the canEncodeImage method,
+ * which is used to locate plug-ins based on the layout of the image to write.
+ *
+ * @see <a href="https://docs.oracle.com/javase/8/docs/technotes/guides/imageio/spec/extending.fm1.html">Writing Image I/O Plug-ins</a>
+ */
+public class PbmImageWriterSpi extends ImageWriterSpi {
+
+	private static final String VENDOR_NAME = "scrivo.org";
+	private static final String VERSION = "1.0";
+	private static final String[] NAMES = {
+			"pbm", "PBM", "pgm", "PGM", "ppm", "PPM", "pam", "PAM" };
+	private static final String[] SUFFIXES = { "pbm", "PBM", "pgm",
+			"PGM", "ppm", "PPM", "pam", "PAM", "pbm.plain", "pgm.plain",
+			"ppm.plain" };
+	private static final String[] MIME_TYPES = { "image/x-portable-bitmap",
+			"image/x-portable-graymap", "image/x-portable-pixmap",
+			"image/x-portable-arbitrarymap" };
+	private static final Class<?>[] OUTPUT_TYPES = { ImageOutputStream.class };
+	private static final String[] READER_SPI_NAMES = {
+			PbmImageReaderSpi.class.getName() };
+	private static final String DESCRIPTION = "ImageIO writer plugin for Netpbm (pbm, pgm, ppm, pam) files.";
+
+	public PbmImageWriterSpi() {
+		super(
+				/* String vendorName */ VENDOR_NAME,
+				/* String version */ VERSION,
+				/* String[] names */ NAMES,
+				/* String[] suffixes */ SUFFIXES,
+				/* String[] MIMETypes */ MIME_TYPES,
+				/* String writerClassName */ PbmImageWriter.class.getName(),
+				/* Class<?>[] outputTypes */ OUTPUT_TYPES,
+				/* String[] readerSpiNames */ READER_SPI_NAMES,
+				/* boolean supportsStandardStreamMetadataFormat */ false,
+				/* String nativeStreamMetadataFormatName */ null,
+				/* String nativeStreamMetadataFormatClassName */ null,
+				/* String[] extraStreamMetadataFormatNames */ null,
+				/* String[] extraStreamMetadataFormatClassNames */ null,
+				/* boolean supportsStandardImageMetadataFormat */ false,
+				/* String nativeImageMetadataFormatName */ null,
+				/* String nativeImageMetadataFormatClassName */ null,
+				/* String[] extraImageMetadataFormatNames */ null,
+				/* String[] extraImageMetadataFormatClassNames */ null);
+	}
+
+	@Override
+	public String getDescription(Locale locale) {
+		return DESCRIPTION;
+	}
+
+	/**
+	 * The canEncodeImage method is responsible for determining whether the
+	 * writer can write an image with the given layout. Netpbm images can
+	 * hold grayscale (or bitmap) and RGB data, with or without (non
+	 * premultiplied) alpha, with integral samples of at most 16 bits.
+	 */
+	@Override
+	public boolean canEncodeImage(ImageTypeSpecifier type) {
+		SampleModel sm = type.getSampleModel();
+		int dataType = sm.getDataType();
+		if (dataType != DataBuffer.TYPE_BYTE
+				&& dataType != DataBuffer.TYPE_USHORT
+				&& dataType != DataBuffer.TYPE_INT) {
+			return false;
+		}
+		int numBands = sm.getNumBands();
+		if (numBands < 1 || numBands > 4) {
+			return false;
+		}
+		for (int sampleSize : sm.getSampleSize()) {
+			if (sampleSize > 16) {
+				return false;
+			}
+		}
+		ColorModel cm = type.getColorModel();
+		if (cm instanceof IndexColorModel) {
+			// Only bitmaps can be stored, not palette images.
+			return sm.getSampleSize(0) == 1;
+		}
+		if (cm != null) {
+			if (cm.isAlphaPremultiplied()
+					|| cm.hasAlpha() != (numBands == 2 || numBands == 4)) {
+				return false;
+			}
+			int csType = cm.getColorSpace().getType();
+			return numBands <= 2 ? csType == ColorSpace.TYPE_GRAY
+					: csType == ColorSpace.TYPE_RGB;
+		}
+		return true;
+	}
+
+	@Override
+	public ImageWriter createWriterInstance(Object extension) {
+		return new PbmImageWriter(this);
+	}
+
+}
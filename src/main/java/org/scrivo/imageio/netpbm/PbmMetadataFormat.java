@@ -0,0 +1,75 @@
+package org.scrivo.imageio.netpbm;
+
+import java.util.Arrays;
+
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadataFormat;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+
+/**
+ * The native image metadata format of Netpbm images. The metadata holds the
+ * values of the image header, the position of the image data in the stream
+ * and the comments in the header:
+ *
+ * <pre>
+ * &lt;org_scrivo_imageio_netpbm_1.0&gt;
+ *   &lt;Header signature="P5" width="96" height="95" depth="1"
+ *       maxValue="255" rasterOffset="58"/&gt;
+ *   &lt;Comments&gt;
+ *     &lt;Comment value="CREATOR: The GIMP's PNM Filter Version 1.0"/&gt;
+ *   &lt;/Comments&gt;
+ * &lt;/org_scrivo_imageio_netpbm_1.0&gt;
+ * </pre>
+ *
+ * The tupleType attribute is only present for PAM images that have one. The
+ * rasterOffset attribute is a string holding the position as a decimal long,
+ * since streams can be larger than an integer can address.
+ */
+public class PbmMetadataFormat extends IIOMetadataFormatImpl {
+
+	/** The name of the native metadata format. */
+	public static final String NATIVE_FORMAT_NAME =
+			"org_scrivo_imageio_netpbm_1.0";
+
+	private static PbmMetadataFormat instance = null;
+
+	private PbmMetadataFormat() {
+		super(NATIVE_FORMAT_NAME, CHILD_POLICY_SEQUENCE);
+
+		addElement("Header", NATIVE_FORMAT_NAME, CHILD_POLICY_EMPTY);
+		addAttribute("Header", "signature", DATATYPE_STRING, true, null,
+				Arrays.asList("P1", "P2", "P3", "P4", "P5", "P6", "P7"));
+		addAttribute("Header", "width", DATATYPE_INTEGER, true, null,
+				"1", null, true, false);
+		addAttribute("Header", "height", DATATYPE_INTEGER, true, null,
+				"1", null, true, false);
+		addAttribute("Header", "depth", DATATYPE_INTEGER, true, null,
+				"1", null, true, false);
+		addAttribute("Header", "maxValue", DATATYPE_INTEGER, true, null,
+				"1", null, true, false);
+		addAttribute("Header", "tupleType", DATATYPE_STRING, false, null);
+		addAttribute("Header", "rasterOffset", DATATYPE_STRING, true, null);
+
+		addElement("Comments", NATIVE_FORMAT_NAME, 0, Integer.MAX_VALUE);
+		addElement("Comment", "Comments", CHILD_POLICY_EMPTY);
+		addAttribute("Comment", "value", DATATYPE_STRING, true, null);
+	}
+
+	@Override
+	public boolean canNodeAppear(String elementName,
+			ImageTypeSpecifier imageType) {
+		return true;
+	}
+
+	/**
+	 * @return
+	 * 		The shared instance of the format.
+	 */
+	public static synchronized IIOMetadataFormat getInstance() {
+		if (null == instance) {
+			instance = new PbmMetadataFormat();
+		}
+		return instance;
+	}
+
+}
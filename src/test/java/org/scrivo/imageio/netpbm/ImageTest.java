@@ -1,13 +1,53 @@
 package org.scrivo.imageio.netpbm;
 
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
 import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormat;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import junit.framework.TestCase;
 
@@ -42,8 +82,24 @@ public class ImageTest extends TestCase {
 	private void assertImage(TestImage ti, BufferedImage data1Ppm) {
 		assertEquals(ti.getWidth(), data1Ppm.getWidth());
 		assertEquals(ti.getHeight(), data1Ppm.getHeight());
-		byte[] data = ((DataBufferByte) data1Ppm.getRaster().getDataBuffer()).getData();
-		assertTrue(Arrays.equals(ti.getData(), data));
+		assertTrue(Arrays.equals(ti.getData(), grayData(data1Ppm)));
+	}
+
+	/**
+	 * Get the samples of an image with byte samples. The bits of bitmaps
+	 * (TYPE_BYTE_BINARY) are expanded to 8 bit gray values.
+	 */
+	private static byte[] grayData(BufferedImage img) {
+		if (img.getType() == BufferedImage.TYPE_BYTE_BINARY) {
+			int[] samples = img.getRaster().getSamples(0, 0, img.getWidth(),
+					img.getHeight(), 0, (int[]) null);
+			byte[] data = new byte[samples.length];
+			for (int i = 0; i < samples.length; i++) {
+				data[i] = (byte) (samples[i] * 255);
+			}
+			return data;
+		}
+		return ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
 	}
 
 	/**
@@ -128,8 +184,7 @@ public class ImageTest extends TestCase {
 		assertEquals(230, data1PbmPlain.getWidth());
 		assertEquals(197, data1PbmPlain.getHeight());
 
-		TestImage ti = new TestImage(230, 197,
-				((DataBufferByte) data1PbmPlain.getRaster().getDataBuffer()).getData());
+		TestImage ti = new TestImage(230, 197, grayData(data1PbmPlain));
 
 		assertImage(ti, ImageIO.read(getClass().getResourceAsStream("/potrace.data1.pbm")));
 		assertImage(ti, ImageIO.read(getClass().getResourceAsStream("/potrace.data1.pgm.plain")));
@@ -167,16 +222,161 @@ public class ImageTest extends TestCase {
 	 */
 	public void testDataError() throws IOException {
 		// The test image only has 23 bytes int the file where there syoud
-		// have been 50. It is expected that the remaining lines/data repeats
-		// what was in the buffer at that point.
+		// have been 50. It is expected that the remaining data is 0.
 		TestImage ti = new TestImage(10, 5, new byte[] {
 				0, 1, 2, 3, 4, 5, 6, 7, 8, 9,
 				10, 11, 12, 13, 14, 15, 16, 17, 18, 19,
-				20, 21, 22, 13, 14, 15, 16, 17, 18, 19,
-				20, 21, 22, 13, 14, 15, 16, 17, 18, 19,
-				20, 21, 22, 13, 14, 15, 16, 17, 18, 19
+				20, 21, 22, 0, 0, 0, 0, 0, 0, 0,
+				0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+				0, 0, 0, 0, 0, 0, 0, 0, 0, 0
 		});
 		assertImage(ti, ImageIO.read(getClass().getResourceAsStream("/test.error.pgm")));
+
+		// The same goes for the raster mapped from a file, of which the
+		// truncated row and the rows past the end of the file are 0. The
+		// reader is given the file itself, as ImageIO.read(File) wraps the
+		// file in a stream.
+		byte[] data = new byte[300 * 150 + 100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 251 + 1);
+		}
+		byte[] header = "P5\n300 300\n255\n".getBytes("US-ASCII");
+		File file = File.createTempFile("error", ".pgm");
+		PbmImageReader reader = new PbmImageReader(new PbmImageReaderSpi());
+		try {
+			Files.write(file.toPath(), resourceBytes("/test.error.pgm"));
+			reader.setInput(file);
+			assertImage(ti, reader.read(0));
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write(header);
+			out.write(data);
+			Files.write(file.toPath(), out.toByteArray());
+			reader.setInput(file);
+			byte[] pixels = grayData(reader.read(0));
+			assertEquals(300 * 300, pixels.length);
+			assertTrue(Arrays.equals(data,
+					Arrays.copyOf(pixels, data.length)));
+			for (int i = data.length; i < pixels.length; i++) {
+				assertEquals("pixel " + i, 0, pixels[i]);
+			}
+		} finally {
+			reader.dispose();
+			file.delete();
+		}
+
+		// And for plain images, of which the bitmaps are white.
+		assertImage(new TestImage(3, 2, new byte[] { 1, 2, 3, 4, 0, 0 }),
+				read("P2\n3 2\n255\n1 2 3 4".getBytes("US-ASCII"), null));
+		assertImage(new TestImage(3, 2, new byte[] { 0, -1, 0, -1, -1, -1 }),
+				read("P1\n3 2\n1 0 1".getBytes("US-ASCII"), null));
+	}
+
+	/**
+	 * Test strict validation of truncated image data, which fails before
+	 * the image is allocated if the length of the input is known, and the
+	 * rejection of images that are too large to allocate.
+	 * 
+	 * @throws IOException
+	 */
+	public void testStrictValidation() throws IOException {
+		PbmImageReadParam param = new PbmImageReadParam();
+		param.setStrict(true);
+		byte[] data = resourceBytes("/test.error.pgm");
+
+		File file = File.createTempFile("strict", ".pgm");
+		try {
+			Files.write(file.toPath(), data);
+			ImageReader reader = ImageIO.getImageReaders(file).next();
+			reader.setInput(file);
+			try {
+				reader.read(0, param);
+				fail("Truncated image read");
+			} catch (IIOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains(
+						"50 bytes expected, 23 available"));
+			}
+			reader.dispose();
+		} finally {
+			file.delete();
+		}
+
+		// The length of a memory cache stream is unknown, so reading fails
+		// at the first truncated row.
+		try {
+			read(data, param);
+			fail("Truncated image read");
+		} catch (IIOException e) {
+			assertEquals("Image data truncated in line 2", e.getMessage());
+		}
+		try {
+			read("P2\n3 2\n255\n1 2 3 4".getBytes("US-ASCII"), param);
+			fail("Truncated image read");
+		} catch (IIOException e) {
+			assertEquals("Image data truncated in line 1", e.getMessage());
+		}
+		try (ImageInputStream iis = ImageIO.createImageInputStream(
+				new ByteArrayInputStream(data))) {
+			ImageReader reader = ImageIO.getImageReaders(iis).next();
+			reader.setInput(iis);
+			Iterator<Raster> rows = ((PbmImageReader) reader).readRows(0,
+					param);
+			rows.next();
+			rows.next();
+			try {
+				rows.next();
+				fail("Truncated row read");
+			} catch (UncheckedIOException e) {
+				assertTrue(e.getCause() instanceof IIOException);
+			}
+		}
+
+		// Complete images are read as usual.
+		assertImage(new TestImage(2, 1, new byte[] { 1, 2 }),
+				read("P5\n2 1\n255\n\1\2".getBytes("US-ASCII"), param));
+
+		// Small files that claim huge dimensions are read in lenient mode,
+		// unless the number of pixels is limited.
+		assertEquals(Long.MAX_VALUE, param.getMaxPixels());
+		PbmImageReadParam small = new PbmImageReadParam();
+		small.setMaxPixels(1 << 24);
+		try {
+			read("P5\n40000 40000\n255\n".getBytes("US-ASCII"), small);
+			fail("Huge image read");
+		} catch (IIOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(
+					"Image too large"));
+		}
+		small.setMaxPixels(49);
+		try {
+			read(data, small);
+			fail("Image over the pixel limit read");
+		} catch (IIOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(
+					"Image too large"));
+		}
+		small.setMaxPixels(50);
+		assertEquals(10, read(data, small).getWidth());
+
+		// Images that don't fit in an array are rejected in any mode.
+		try {
+			read("P6\n30000 30000\n255\n".getBytes("US-ASCII"), null);
+			fail("Huge image read");
+		} catch (IIOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(
+					"Image too large"));
+		}
+		try (ImageInputStream iis = ImageIO.createImageInputStream(
+				new ByteArrayInputStream(("P7\nWIDTH 1000000000\nHEIGHT 1\n"
+						+ "DEPTH 4\nMAXVAL 255\nENDHDR\n")
+						.getBytes("US-ASCII")))) {
+			ImageReader reader = ImageIO.getImageReaders(iis).next();
+			reader.setInput(iis);
+			reader.getWidth(0);
+			fail("Image with overflowing rows accepted");
+		} catch (IIOException e) {
+			assertEquals("Image too wide", e.getCause().getMessage());
+		}
 	}
 
 	/**
@@ -205,4 +405,1308 @@ public class ImageTest extends TestCase {
 				potrace.getColorModel().getColorSpace().getType());
 	}
 
+	private BufferedImage read(String resource, ImageReadParam param)
+			throws IOException {
+		try (ImageInputStream iis = ImageIO.createImageInputStream(
+				getClass().getResourceAsStream(resource))) {
+			ImageReader reader = ImageIO.getImageReaders(iis).next();
+			reader.setInput(iis);
+			return reader.read(0, param);
+		}
+	}
+
+	/**
+	 * Test that subsampled images, which skip the rows left out, hold the
+	 * pixels of the full image at the subsampling positions.
+	 * 
+	 * @throws IOException
+	 */
+	public void testSubsampling() throws IOException {
+		for (String resource : new String[] { "/potrace.data1.ppm",
+				"/potrace.data1.ppm.plain", "/potrace.data1.pgm.plain",
+				"/potrace.data1.pbm", "/potrace.data1.pbm.plain" }) {
+			BufferedImage full = read(resource, null);
+			ImageReadParam param = new ImageReadParam();
+			param.setSourceRegion(new Rectangle(3, 5, 150, 40));
+			param.setSourceSubsampling(4, 3, 1, 2);
+			BufferedImage img = read(resource, param);
+			// The subsampling offsets are added to the region.
+			assertEquals(38, img.getWidth());
+			assertEquals(13, img.getHeight());
+			for (int y = 0; y < img.getHeight(); y++) {
+				for (int x = 0; x < img.getWidth(); x++) {
+					assertEquals(resource + " " + x + "," + y,
+							full.getRGB(4 + x * 4, 7 + y * 3), img.getRGB(x, y));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test that source regions, subsampling and destination offsets give the
+	 * same result when rows are copied directly into the destination as when
+	 * they are copied pixel by pixel (which is forced by selecting bands).
+	 * 
+	 * @throws IOException
+	 */
+	public void testDirectRowCopy() throws IOException {
+		for (String resource : new String[] {
+				"/gimp.fabi.ppm", "/gimp.bricks.pgm", "/potrace.data1.pbm" }) {
+			int bands = resource.endsWith(".ppm") ? 3 : 1;
+			int[] bandList = bands == 3 ? new int[] { 0, 1, 2 } : new int[] { 0 };
+			for (int sub = 1; sub <= 3; sub++) {
+				ImageReadParam direct = new ImageReadParam();
+				direct.setSourceRegion(new Rectangle(5, 7, 60, 50));
+				direct.setSourceSubsampling(sub, sub, 0, 0);
+				direct.setDestinationOffset(new Point(2, 1));
+
+				ImageReadParam generic = new ImageReadParam();
+				generic.setSourceRegion(new Rectangle(5, 7, 60, 50));
+				generic.setSourceSubsampling(sub, sub, 0, 0);
+				generic.setDestinationOffset(new Point(2, 1));
+				generic.setSourceBands(bandList);
+				generic.setDestinationBands(bandList);
+
+				BufferedImage expected = read(resource, generic);
+				TestImage ti = new TestImage(expected.getWidth(),
+						expected.getHeight(), grayData(expected));
+				assertImage(ti, read(resource, direct));
+			}
+		}
+	}
+
+	private byte[] resourceBytes(String resource) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (InputStream is = getClass().getResourceAsStream(resource)) {
+			byte[] buf = new byte[4096];
+			for (int n; (n = is.read(buf)) >= 0;) {
+				bos.write(buf, 0, n);
+			}
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Test that decoding into each of the offered image types, some of which
+	 * are written with the samples reordered or packed into ints, gives the
+	 * same colors as decoding into the default type.
+	 * 
+	 * @throws IOException
+	 */
+	public void testDestinationTypes() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(("P7\nWIDTH 70\nHEIGHT 60\nDEPTH 4\nMAXVAL 100\n"
+				+ "TUPLTYPE RGB_ALPHA\nENDHDR\n").getBytes("US-ASCII"));
+		for (int i = 0; i < 70 * 60 * 4; i++) {
+			bos.write(i * 7 % 101);
+		}
+		byte[] pam = bos.toByteArray();
+		byte[] ppm = resourceBytes("/gimp.fabi.ppm");
+		byte[] plain = resourceBytes("/potrace.data1.ppm.plain");
+		int[] expectedTypes = { BufferedImage.TYPE_3BYTE_BGR,
+				BufferedImage.TYPE_INT_RGB };
+		int[] expectedAlphaTypes = { BufferedImage.TYPE_4BYTE_ABGR,
+				BufferedImage.TYPE_INT_ARGB };
+		for (byte[] data : new byte[][] { pam, ppm, plain }) {
+			ImageReadParam param = new ImageReadParam();
+			param.setSourceRegion(new Rectangle(5, 7, 60, 50));
+			param.setSourceSubsampling(2, 3, 1, 0);
+			param.setDestinationOffset(new Point(2, 1));
+			BufferedImage expected = read(data, param);
+
+			try (ImageInputStream iis = ImageIO.createImageInputStream(
+					new ByteArrayInputStream(data))) {
+				ImageReader reader = ImageIO.getImageReaders(iis).next();
+				reader.setInput(iis);
+				List<ImageTypeSpecifier> types = new ArrayList<>();
+				for (Iterator<ImageTypeSpecifier> it = reader.getImageTypes(0);
+						it.hasNext();) {
+					types.add(it.next());
+				}
+				int[] bufferedTypes = data == pam ? expectedAlphaTypes
+						: expectedTypes;
+				assertEquals(1 + bufferedTypes.length, types.size());
+				for (int t = 0; t < bufferedTypes.length; t++) {
+					param.setDestinationType(types.get(t + 1));
+					BufferedImage img = reader.read(0, param);
+					assertEquals(bufferedTypes[t], img.getType());
+					assertEquals(expected.getWidth(), img.getWidth());
+					assertEquals(expected.getHeight(), img.getHeight());
+					for (int y = 0; y < img.getHeight(); y++) {
+						for (int x = 0; x < img.getWidth(); x++) {
+							assertEquals(bufferedTypes[t] + " " + x + "," + y,
+									expected.getRGB(x, y), img.getRGB(x, y));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test that cropping rows of raw images, for which the reader skips the
+	 * rows above the source region, gives the same result as cropping the
+	 * fully decoded image.
+	 * 
+	 * @throws IOException
+	 */
+	public void testSourceRegionSkip() throws IOException {
+		for (String resource : new String[] {
+				"/potrace.data1.ppm", "/potrace.data1.pgm",
+				"/potrace.data1.pbm", "/potrace.data1.ppm.plain" }) {
+			BufferedImage full = read(resource, null);
+			Rectangle region = new Rectangle(10, 150, 100, 40);
+			ImageReadParam param = new ImageReadParam();
+			param.setSourceRegion(region);
+			BufferedImage crop = read(resource, param);
+			assertEquals(region.width, crop.getWidth());
+			assertEquals(region.height, crop.getHeight());
+			for (int y = 0; y < region.height; y++) {
+				for (int x = 0; x < region.width; x++) {
+					assertEquals(full.getRGB(region.x + x, region.y + y),
+							crop.getRGB(x, y));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test the parsing of numeric tokens in plain images: comments directly
+	 * following a value, values that span the read buffer boundary and a
+	 * token that contains bad characters.
+	 * 
+	 * @throws IOException
+	 */
+	public void testPlainTokens() throws IOException {
+		TestImage ti = new TestImage(3, 1, new byte[] { 51, 0, -1 });
+		assertImage(ti, ImageIO.read(new ByteArrayInputStream(
+				"P2 3 1#comment\n10# comment\n2 0#\n010".getBytes("US-ASCII"))));
+
+		StringBuilder sb = new StringBuilder("P2 1000 1 255 ");
+		for (int i = 0; i < 1000; i++) {
+			sb.append(i % 256).append(' ');
+		}
+		BufferedImage img = ImageIO.read(new ByteArrayInputStream(
+				sb.toString().getBytes("US-ASCII")));
+		byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < 1000; i++) {
+			assertEquals((byte) i, data[i]);
+		}
+
+		try {
+			ImageIO.read(new ByteArrayInputStream(
+					"P2 3 1 255 1 2x 3".getBytes("US-ASCII")));
+			fail("Expected an exception for a bad token");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static short[] ushortData(BufferedImage img) {
+		assertEquals(DataBuffer.TYPE_USHORT,
+				img.getRaster().getDataBuffer().getDataType());
+		return ((DataBufferUShort) img.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Test images with 16 bit samples (maxColor over 255) in raw and plain
+	 * format.
+	 * 
+	 * @throws IOException
+	 */
+	public void testWideSamples() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write("P5 3 1 65535\n".getBytes("US-ASCII"));
+		bos.write(new byte[] { 1, 2, -1, -1, 0, 0 });
+		BufferedImage img = ImageIO.read(
+				new ByteArrayInputStream(bos.toByteArray()));
+		assertEquals(16, img.getColorModel().getComponentSize(0));
+		assertTrue(Arrays.equals(new short[] { 258, -1, 0 }, ushortData(img)));
+
+		bos.reset();
+		bos.write("P6 1 1 1000\n".getBytes("US-ASCII"));
+		bos.write(new byte[] { 1, -12, 3, -24, 0, 0 });
+		img = ImageIO.read(new ByteArrayInputStream(bos.toByteArray()));
+		assertTrue(Arrays.equals(new short[] { 32767, -1, 0 }, ushortData(img)));
+
+		img = ImageIO.read(new ByteArrayInputStream(
+				"P2 3 1 1000 500 1000 0".getBytes("US-ASCII")));
+		assertTrue(Arrays.equals(new short[] { 32767, -1, 0 }, ushortData(img)));
+
+		// Raw samples can't take more than two bytes, plain images with a
+		// larger maxColor are scaled to 8 bit samples.
+		try {
+			read("P5 2 1 100000\n\1\2\3\4\5\6".getBytes("US-ASCII"), null);
+			fail("Raw image with a maxColor over 65535 read");
+		} catch (IIOException e) {
+			// expected
+		}
+		assertImage(new TestImage(2, 1, new byte[] { -1, 0 }), read(
+				"P2 2 1 100000 100000 0".getBytes("US-ASCII"), null));
+	}
+
+	/**
+	 * Test the direct row copy for images with 16 bit samples.
+	 * 
+	 * @throws IOException
+	 */
+	public void testWideDirectRowCopy() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write("P6 40 30 65535\n".getBytes("US-ASCII"));
+		for (int i = 0; i < 40 * 30 * 3; i++) {
+			bos.write(i >> 3);
+			bos.write(i * 7);
+		}
+		byte[] data = bos.toByteArray();
+		for (int sub = 1; sub <= 3; sub++) {
+			ImageReadParam direct = new ImageReadParam();
+			direct.setSourceRegion(new Rectangle(3, 4, 30, 20));
+			direct.setSourceSubsampling(sub, sub, 0, 0);
+			ImageReadParam generic = new ImageReadParam();
+			generic.setSourceRegion(new Rectangle(3, 4, 30, 20));
+			generic.setSourceSubsampling(sub, sub, 0, 0);
+			generic.setSourceBands(new int[] { 0, 1, 2 });
+			generic.setDestinationBands(new int[] { 0, 1, 2 });
+			assertTrue(Arrays.equals(
+					ushortData(read(data, generic)),
+					ushortData(read(data, direct))));
+		}
+	}
+
+	private BufferedImage read(byte[] data, ImageReadParam param)
+			throws IOException {
+		try (ImageInputStream iis = ImageIO.createImageInputStream(
+				new ByteArrayInputStream(data))) {
+			ImageReader reader = ImageIO.getImageReaders(iis).next();
+			reader.setInput(iis);
+			return reader.read(0, param);
+		}
+	}
+
+	/**
+	 * Test scaling of samples with values of 128 and over (which are negative
+	 * when stored in a byte) and clamping of values over the maxColor.
+	 * 
+	 * @throws IOException
+	 */
+	public void testSampleScaling() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write("P5 4 1 200\n".getBytes("US-ASCII"));
+		bos.write(new byte[] { 0, 100, (byte) 200, (byte) 250 });
+		TestImage ti = new TestImage(4, 1, new byte[] { 0, 127, -1, -1 });
+		assertImage(ti, ImageIO.read(
+				new ByteArrayInputStream(bos.toByteArray())));
+		assertImage(ti, ImageIO.read(new ByteArrayInputStream(
+				"P2 4 1 200 0 100 200 250".getBytes("US-ASCII"))));
+	}
+
+	/**
+	 * Test a stream with multiple images of different formats, read in
+	 * random order.
+	 * 
+	 * @throws IOException
+	 */
+	public void testMultipleImages() throws IOException {
+		String[] resources = { "/potrace.data1.ppm", "/wiki.feep.pgm",
+				"/potrace.data1.pbm", "/wiki.test02.pbm", "/gimp.bricks.pgm" };
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (String resource : resources) {
+			try (java.io.InputStream is = getClass().getResourceAsStream(resource)) {
+				byte[] buf = new byte[4096];
+				for (int n = is.read(buf); n > 0; n = is.read(buf)) {
+					bos.write(buf, 0, n);
+				}
+			}
+			// Plain images need to be followed by white space.
+			if (resource.endsWith(".pgm") && resource.startsWith("/wiki")) {
+				bos.write('\n');
+			}
+		}
+		try (ImageInputStream iis = ImageIO.createImageInputStream(
+				new ByteArrayInputStream(bos.toByteArray()))) {
+			ImageReader reader = ImageIO.getImageReaders(iis).next();
+			reader.setInput(iis);
+			assertEquals(-1, reader.getNumImages(false));
+			for (int i : new int[] { 4, 1, 0, 3, 2, 0 }) {
+				BufferedImage expected = read(resources[i], null);
+				TestImage ti = new TestImage(expected.getWidth(),
+						expected.getHeight(), grayData(expected));
+				assertImage(ti, reader.read(i));
+			}
+			assertEquals(5, reader.getNumImages(true));
+			assertEquals(5, reader.getNumImages(false));
+			try {
+				reader.read(5);
+				fail("Expected an exception for a bad index");
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+
+			// Images can't be searched in forward only streams.
+			iis.seek(0);
+			reader.setInput(iis, true);
+			assertEquals(-1, reader.getNumImages(false));
+			try {
+				reader.getNumImages(true);
+				fail("Expected an exception for a forward only search");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Test PAM images with different depths and tuple types.
+	 * 
+	 * @throws IOException
+	 */
+	public void testPam() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(("P7\n# A comment\nWIDTH 2\nHEIGHT 1\nDEPTH 4\n"
+				+ "MAXVAL 255\nTUPLTYPE RGB_ALPHA\nENDHDR\n").getBytes("US-ASCII"));
+		bos.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, (byte) 200 });
+		BufferedImage img = ImageIO.read(
+				new ByteArrayInputStream(bos.toByteArray()));
+		assertTrue(img.getColorModel().hasAlpha());
+		assertEquals(0x04010203, img.getRGB(0, 0));
+		assertEquals(0xc8050607, img.getRGB(1, 0));
+
+		bos.reset();
+		bos.write(("P7\nWIDTH 2\nHEIGHT 1\nDEPTH 2\nMAXVAL 65535\n"
+				+ "TUPLTYPE GRAYSCALE_ALPHA\nENDHDR\n").getBytes("US-ASCII"));
+		bos.write(new byte[] { 1, 2, -1, -1, 0, 0, 0, 1 });
+		img = ImageIO.read(new ByteArrayInputStream(bos.toByteArray()));
+		assertTrue(img.getColorModel().hasAlpha());
+		assertTrue(Arrays.equals(new short[] { 258, -1, 0, 1 }, ushortData(img)));
+
+		bos.reset();
+		bos.write(("P7\nWIDTH 3\nHEIGHT 1\nDEPTH 1\nMAXVAL 1\n"
+				+ "TUPLTYPE BLACKANDWHITE\nENDHDR\n").getBytes("US-ASCII"));
+		bos.write(new byte[] { 0, 1, 0 });
+		assertImage(new TestImage(3, 1, new byte[] { 0, -1, 0 }),
+				ImageIO.read(new ByteArrayInputStream(bos.toByteArray())));
+	}
+
+	/**
+	 * Test that reading raw images from a file, for which the reader maps the
+	 * raster into memory, gives the same result as reading them from a stream.
+	 * The rasters of the images, the bitmap too, are large enough to be
+	 * mapped.
+	 * 
+	 * @throws IOException
+	 */
+	public void testMappedFile() throws IOException {
+		byte[] data = rawImages(601, 900);
+
+		File file = File.createTempFile("mapped", ".ppm");
+		try {
+			Files.write(file.toPath(), data);
+			ImageReadParam region = new ImageReadParam();
+			region.setSourceRegion(new Rectangle(3, 4, 30, 20));
+			region.setDestinationOffset(new Point(2, 1));
+			ImageReadParam subsampled = new ImageReadParam();
+			subsampled.setSourceSubsampling(2, 3, 1, 0);
+			for (ImageReadParam param : new ImageReadParam[] {
+					null, region, subsampled }) {
+				for (Object input : new Object[] { file, file.toPath() }) {
+					Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+					assertTrue(readers.hasNext());
+					ImageReader fileReader = readers.next();
+					fileReader.setInput(input);
+					try (ImageInputStream iis = ImageIO.createImageInputStream(
+							new ByteArrayInputStream(data))) {
+						ImageReader streamReader = ImageIO.getImageReaders(iis)
+								.next();
+						streamReader.setInput(iis);
+						for (int i = 0; i < 4; i++) {
+							assertTrue(Arrays.equals(
+									pixels(streamReader.read(i, param)),
+									pixels(fileReader.read(i, param))));
+						}
+					} finally {
+						fileReader.dispose();
+					}
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test reading raw images from a stream with rows larger than the default
+	 * read buffer, which are read straight into the destination.
+	 * 
+	 * @throws IOException
+	 */
+	public void testLargeRows() throws IOException {
+		byte[] data = rawImages(1000, 12);
+
+		File file = File.createTempFile("rows", ".ppm");
+		try {
+			Files.write(file.toPath(), data);
+			ImageReadParam region = new ImageReadParam();
+			region.setSourceRegion(new Rectangle(0, 3, 1000, 7));
+			for (ImageReadParam param : new ImageReadParam[] { null, region }) {
+				PbmImageReader fileReader = new PbmImageReader(
+						new PbmImageReaderSpi());
+				PbmImageReader streamReader = new PbmImageReader(
+						new PbmImageReaderSpi());
+				fileReader.setInput(file);
+				try (ImageInputStream iis = ImageIO.createImageInputStream(
+						new ByteArrayInputStream(data))) {
+					streamReader.setInput(iis);
+					for (int i = 0; i < 4; i++) {
+						assertTrue(Arrays.equals(
+								pixels(streamReader.read(i, param)),
+								pixels(fileReader.read(i, param))));
+					}
+					// The buffer was adapted to the rows of the last image.
+					assertEquals(NetpbmImageInputStream.DEFAULT_BUFFER_SIZE,
+							streamReader.stream.getBufferSize());
+					streamReader.read(0, param);
+					assertEquals(3000, streamReader.stream.getBufferSize());
+				} finally {
+					fileReader.dispose();
+					streamReader.dispose();
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test bulk reads from the stream at offsets in the output array, from an
+	 * underlying stream that returns a few bytes at a time.
+	 * 
+	 * @throws IOException
+	 */
+	public void testStreamRead() throws IOException {
+		byte[] data = new byte[100000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 31);
+		}
+		ImageInputStream iis = new MemoryCacheImageInputStream(
+				new ByteArrayInputStream(data)) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 7));
+			}
+		};
+		NetpbmImageInputStream stream = new NetpbmImageInputStream(iis);
+		stream.setBufferSize(64);
+		byte[] b = new byte[data.length + 20];
+		int p = 0;
+		for (int len : new int[] { 3, 10, 64, 100, 1, 50000 }) {
+			assertEquals(len, stream.read(b, 10 + p, len));
+			p += len;
+			assertEquals(p, stream.getStreamPosition());
+		}
+		// A short read at the end of the file, then EOF.
+		assertEquals(data.length - p, stream.read(b, 10 + p, data.length - p + 10));
+		assertEquals(-1, stream.read(b, 0, 10));
+		assertTrue(Arrays.equals(data, Arrays.copyOfRange(b, 10, 10 + data.length)));
+	}
+
+	/**
+	 * Test seeking within the read buffer and flushing the stream.
+	 * 
+	 * @throws IOException
+	 */
+	public void testStreamSeek() throws IOException {
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 31);
+		}
+		ImageInputStream iis = new MemoryCacheImageInputStream(
+				new ByteArrayInputStream(data));
+		NetpbmImageInputStream stream = new NetpbmImageInputStream(iis);
+		stream.skipBytes(100);
+		assertEquals(data[100], (byte) stream.read());
+		// Seeks within the buffer don't touch the underlying stream.
+		long underlying = iis.getStreamPosition();
+		stream.seek(1000);
+		assertEquals(1000, stream.getStreamPosition());
+		assertEquals(data[1000], (byte) stream.read());
+		stream.seek(150);
+		assertEquals(data[150], (byte) stream.read());
+		assertEquals(underlying, iis.getStreamPosition());
+		// Seeks beyond the buffer do.
+		stream.seek(9000);
+		assertEquals(data[9000], (byte) stream.read());
+		assertEquals(9001, stream.getStreamPosition());
+
+		stream.flushBefore(8000);
+		assertEquals(8000, iis.getFlushedPosition());
+		try {
+			stream.seek(7999);
+			fail("Seek before the flushed position");
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+		stream.seek(8000);
+		assertEquals(data[8000], (byte) stream.read());
+
+		// Reading images forward only discards the data of earlier images.
+		byte[] images = rawImages(40, 30);
+		iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(images));
+		ImageReader reader = ImageIO.getImageReaders(iis).next();
+		reader.setInput(iis, true, true);
+		long flushed = 0;
+		for (int i = 0; i < 4; i++) {
+			reader.read(i);
+			assertTrue(iis.getFlushedPosition() > flushed);
+			flushed = iis.getFlushedPosition();
+		}
+		reader.dispose();
+	}
+
+	/**
+	 * Test probing the headers of image files, with and without the cache.
+	 * 
+	 * @throws IOException
+	 */
+	public void testProbe() throws IOException {
+		File file = File.createTempFile("probe", ".ppm");
+		try {
+			Files.write(file.toPath(), rawImages(40, 30));
+			PbmImageInfo info = PbmImageProbe.probe(file.toPath());
+			assertEquals("P6", info.getSignature());
+			assertEquals(40, info.getWidth());
+			assertEquals(30, info.getHeight());
+			assertEquals(3, info.getDepth());
+			assertEquals(255, info.getMaxValue());
+			assertTrue(info.isRaw());
+			assertEquals(40 * 30 * 3, info.getRasterLength());
+
+			PbmImageProbe probe = new PbmImageProbe(10);
+			PbmImageInfo cached = probe.get(file.toPath());
+			assertEquals(info.getRasterOffset(), cached.getRasterOffset());
+			assertSame(cached, probe.get(file.toPath()));
+
+			// A changed file is probed again, a plain image with a long
+			// comment needs more than the default prefix.
+			StringBuilder sb = new StringBuilder("P2\n");
+			for (int i = 0; i < 100; i++) {
+				sb.append("# A comment line to make the header longer\n");
+			}
+			sb.append("3 2\n15\n\n\n 1 2 3\n4 5 6\n");
+			Files.write(file.toPath(),
+					sb.toString().getBytes(StandardCharsets.US_ASCII));
+			info = probe.get(file.toPath());
+			assertNotSame(cached, info);
+			assertEquals("P2", info.getSignature());
+			assertEquals(3, info.getWidth());
+			assertEquals(2, info.getHeight());
+			assertEquals(15, info.getMaxValue());
+			assertFalse(info.isRaw());
+			assertEquals(sb.indexOf(" 1 2") + 1, info.getRasterOffset());
+
+			// Headers are read from a prefix of at most 64K.
+			sb.setLength(3);
+			while (sb.length() < 40000) {
+				sb.append("# A comment line to make the header longer\n");
+			}
+			sb.append("3 2\n15\n1 2 3\n4 5 6\n");
+			Files.write(file.toPath(),
+					sb.toString().getBytes(StandardCharsets.US_ASCII));
+			assertEquals(3, PbmImageProbe.probe(file.toPath()).getWidth());
+			sb.insert(3, sb.substring(3, 30003));
+			Files.write(file.toPath(),
+					sb.toString().getBytes(StandardCharsets.US_ASCII));
+			try {
+				PbmImageProbe.probe(file.toPath());
+				fail("Header beyond the largest prefix read");
+			} catch (IIOException e) {
+				// expected
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test the native and standard image metadata, and that no metadata is
+	 * returned if metadata is ignored.
+	 * 
+	 * @throws IOException
+	 */
+	public void testMetadata() throws IOException {
+		try (ImageInputStream iis = ImageIO.createImageInputStream(
+				getClass().getResourceAsStream("/gimp.bricks.pgm"))) {
+			ImageReader reader = ImageIO.getImageReaders(iis).next();
+			reader.setInput(iis);
+			IIOMetadata metadata = reader.readAll(0, null).getMetadata();
+			assertEquals(PbmMetadataFormat.NATIVE_FORMAT_NAME,
+					metadata.getNativeMetadataFormatName());
+			assertNotNull(metadata.getMetadataFormat(
+					PbmMetadataFormat.NATIVE_FORMAT_NAME));
+
+			Node root = metadata.getAsTree(
+					PbmMetadataFormat.NATIVE_FORMAT_NAME);
+			Element header = (Element) root.getFirstChild();
+			assertEquals("P5", header.getAttribute("signature"));
+			assertEquals("96", header.getAttribute("width"));
+			assertEquals("255", header.getAttribute("maxValue"));
+			assertEquals("58", header.getAttribute("rasterOffset"));
+			Element comment = (Element) root.getLastChild().getFirstChild();
+			assertEquals("CREATOR: The GIMP's PNM Filter Version 1.0",
+					comment.getAttribute("value"));
+
+			Node standard = metadata.getAsTree(
+					IIOMetadataFormatImpl.standardMetadataFormatName);
+			boolean text = false;
+			for (Node node = standard.getFirstChild(); node != null;
+					node = node.getNextSibling()) {
+				if ("Text".equals(node.getNodeName())) {
+					assertEquals(comment.getAttribute("value"),
+							((Element) node.getFirstChild())
+									.getAttribute("value"));
+					text = true;
+				}
+			}
+			assertTrue(text);
+
+			// Ignored metadata is not read from the stream.
+			iis.seek(0);
+			reader.setInput(iis, false, true);
+			assertNull(reader.getImageMetadata(0));
+			assertEquals(0, iis.getStreamPosition());
+			reader.dispose();
+		}
+
+		// Raster offsets past 2GB don't fit in an integer.
+		NetpbmHeader header = new NetpbmHeader();
+		header.setSignature(NetpbmSignature.P5);
+		header.setWidth(1);
+		header.setHeight(1);
+		header.setDepth(1);
+		header.setMaxColor(255);
+		header.setRasterOffset(3L << 30);
+		IIOMetadata metadata = new NetpbmMetadata(header,
+				new ArrayList<String>());
+		assertEquals(IIOMetadataFormat.DATATYPE_STRING,
+				metadata.getMetadataFormat(
+						PbmMetadataFormat.NATIVE_FORMAT_NAME)
+						.getAttributeDataType("Header", "rasterOffset"));
+		assertEquals("3221225472", ((Element) metadata.getAsTree(
+				PbmMetadataFormat.NATIVE_FORMAT_NAME).getFirstChild())
+				.getAttribute("rasterOffset"));
+	}
+
+	/**
+	 * Create a stream of four raw images of the given size: an RGB image, a
+	 * 16 bit grayscale image, a grayscale image with a maxval of 200 and a
+	 * bitmap.
+	 */
+	private static byte[] rawImages(int width, int height) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		String size = width + " " + height;
+		bos.write(("P6 " + size + " 255\n").getBytes("US-ASCII"));
+		for (int i = 0; i < width * height * 3; i++) {
+			bos.write(i * 7);
+		}
+		bos.write(("P5 " + size + " 65535\n").getBytes("US-ASCII"));
+		for (int i = 0; i < width * height; i++) {
+			bos.write(i >> 3);
+			bos.write(i * 7);
+		}
+		bos.write(("P5 " + size + " 200\n").getBytes("US-ASCII"));
+		for (int i = 0; i < width * height; i++) {
+			bos.write(i % 201);
+		}
+		bos.write(("P4 " + size + "\n").getBytes("US-ASCII"));
+		for (int i = 0; i < (width + 7) / 8 * height; i++) {
+			bos.write(i * 13);
+		}
+		return bos.toByteArray();
+	}
+
+	private static int[] pixels(BufferedImage img) {
+		return img.getRaster().getPixels(0, 0, img.getWidth(),
+				img.getHeight(), (int[]) null);
+	}
+
+	/**
+	 * Test that bitmaps are read into TYPE_BYTE_BINARY images by default, for
+	 * raw bitmaps by copying the packed rows, and that the result matches
+	 * reading them into grayscale images, with bits that do and don't line
+	 * up with bytes.
+	 * 
+	 * @throws IOException
+	 */
+	public void testPackedBitmap() throws IOException {
+		for (String resource : new String[] {
+				"/potrace.data1.pbm", "/potrace.data1.pbm.plain" }) {
+			for (Rectangle region : new Rectangle[] { null,
+					new Rectangle(8, 3, 160, 50), new Rectangle(5, 3, 161, 50) }) {
+				for (int offset = 0; offset <= 3; offset += 3) {
+					ImageReadParam binary = new ImageReadParam();
+					binary.setSourceRegion(region);
+					binary.setDestinationOffset(new Point(offset, 0));
+					ImageReadParam gray = new ImageReadParam();
+					gray.setSourceRegion(region);
+					gray.setDestinationOffset(new Point(offset, 0));
+					gray.setDestinationType(ImageTypeSpecifier.createGrayscale(
+							8, DataBuffer.TYPE_BYTE, false));
+
+					BufferedImage img = read(resource, binary);
+					assertEquals(BufferedImage.TYPE_BYTE_BINARY, img.getType());
+					BufferedImage expected = read(resource, gray);
+					assertEquals(BufferedImage.TYPE_BYTE_GRAY, expected.getType());
+					assertTrue(Arrays.equals(grayData(expected), grayData(img)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test unpacking the bits of raw bitmaps into grayscale images, from a
+	 * stream and from a file, with rows that end in padding bits.
+	 * 
+	 * @throws IOException
+	 */
+	public void testBitUnpacking() throws IOException {
+		byte[] raw = new byte[] { 'P', '4', ' ', '1', '3', ' ', '2', '\n',
+				(byte) 0xa5, (byte) 0xf0, 0x3c, 0x0f };
+		String plain = "P1 13 2\n1010010111110\n0011110000001\n";
+		ImageReadParam gray = new ImageReadParam();
+		gray.setDestinationType(ImageTypeSpecifier.createGrayscale(8,
+				DataBuffer.TYPE_BYTE, false));
+		byte[] expected = grayData(read(
+				plain.getBytes(StandardCharsets.US_ASCII), gray));
+		assertTrue(Arrays.equals(expected, grayData(read(raw, gray))));
+
+		File file = File.createTempFile("bits", ".pbm");
+		PbmImageReader reader = new PbmImageReader(new PbmImageReaderSpi());
+		try {
+			Files.write(file.toPath(), raw);
+			reader.setInput(file);
+			assertTrue(Arrays.equals(expected,
+					grayData(reader.read(0, gray))));
+		} finally {
+			reader.dispose();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test that decoding raw images from a file in parallel bands gives the
+	 * same result as decoding them row by row. The rasters of the images are
+	 * large enough to be mapped, which parallel decoding requires.
+	 * 
+	 * @throws IOException
+	 */
+	public void testParallelDecode() throws IOException {
+		File file = File.createTempFile("parallel", ".ppm");
+		ImageReader reader = ImageIO.getImageReadersByFormatName("ppm").next();
+		try {
+			Files.write(file.toPath(), rawImages(603, 901));
+			reader.setInput(file);
+			for (int sub = 1; sub <= 3; sub++) {
+				PbmImageReadParam parallel =
+						(PbmImageReadParam) reader.getDefaultReadParam();
+				parallel.setParallelism(7);
+				parallel.setSourceRegion(new Rectangle(3, 5, 190, 290));
+				parallel.setSourceSubsampling(sub, sub, 0, 0);
+				ImageReadParam sequential = new ImageReadParam();
+				sequential.setSourceRegion(new Rectangle(3, 5, 190, 290));
+				sequential.setSourceSubsampling(sub, sub, 0, 0);
+				for (int i = 0; i < 4; i++) {
+					assertTrue(Arrays.equals(
+							pixels(reader.read(i, sequential)),
+							pixels(reader.read(i, parallel))));
+				}
+			}
+
+			// Reading from a worker of the common pool, which then helps
+			// to decode the bands.
+			PbmImageReadParam parallel =
+					(PbmImageReadParam) reader.getDefaultReadParam();
+			parallel.setParallelism(7);
+			BufferedImage expected = reader.read(0);
+			BufferedImage img = ForkJoinPool.commonPool().submit(
+					() -> reader.read(0, parallel)).get();
+			assertTrue(Arrays.equals(pixels(expected), pixels(img)));
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		} finally {
+			reader.dispose();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test that a band that fails while decoding in parallel stops the other
+	 * bands, and that its exception is thrown to the caller once no band
+	 * writes into the destination anymore.
+	 * 
+	 * @throws IOException
+	 */
+	public void testParallelFailure() throws IOException {
+		File file = File.createTempFile("parallel", ".ppm");
+		ImageReader reader = ImageIO.getImageReadersByFormatName("ppm").next();
+		try {
+			Files.write(file.toPath(), rawImages(203, 301));
+			reader.setInput(file);
+
+			// A destination with a banded raster, into which the pixels are
+			// set one by one. The first row of the first band fails, the
+			// rows of the other bands take a while.
+			AtomicInteger rows = new AtomicInteger();
+			SampleModel sm = new BandedSampleModel(DataBuffer.TYPE_BYTE,
+					203, 301, 3);
+			WritableRaster raster = new WritableRaster(sm,
+					sm.createDataBuffer(), new Point()) {
+				@Override
+				public void setPixel(int x, int y, int[] pixel) {
+					if (x == 0 && y == 0) {
+						throw new IllegalStateException("Band failed");
+					}
+					if (x == 0) {
+						rows.incrementAndGet();
+						try {
+							Thread.sleep(1);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					super.setPixel(x, y, pixel);
+				}
+			};
+			PbmImageReadParam parallel =
+					(PbmImageReadParam) reader.getDefaultReadParam();
+			parallel.setParallelism(4);
+			parallel.setDestination(new BufferedImage(new ComponentColorModel(
+					ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false,
+					Transparency.OPAQUE, DataBuffer.TYPE_BYTE), raster, false,
+					null));
+			try {
+				reader.read(0, parallel);
+				fail("Failing band ignored");
+			} catch (IllegalStateException e) {
+				assertEquals("Band failed", e.getMessage());
+			}
+			int written = rows.get();
+			assertTrue("Rows written: " + written, written < 100);
+			Thread.sleep(50);
+			assertEquals(written, rows.get());
+
+			// The reader reads the next image as usual.
+			parallel.setDestination(null);
+			assertTrue(Arrays.equals(pixels(reader.read(0)),
+					pixels(reader.read(0, parallel))));
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			reader.dispose();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Records the calls of the listeners of a reader, and requests an abort
+	 * after a given number of progress reports.
+	 */
+	private static class Recorder implements IIOReadProgressListener,
+			IIOReadUpdateListener {
+
+		private final int abortAfter;
+		private final List<String> events = new ArrayList<>();
+		private final List<Float> progress = new ArrayList<>();
+		private boolean[] updatedRows;
+
+		Recorder(int abortAfter) {
+			this.abortAfter = abortAfter;
+		}
+
+		public void imageStarted(ImageReader source, int imageIndex) {
+			events.add("started");
+		}
+
+		public void imageProgress(ImageReader source, float percentageDone) {
+			progress.add(percentageDone);
+			if (progress.size() == abortAfter) {
+				source.abort();
+			}
+		}
+
+		public void imageComplete(ImageReader source) {
+			events.add("complete");
+		}
+
+		public void readAborted(ImageReader source) {
+			events.add("aborted");
+		}
+
+		public void imageUpdate(ImageReader source, BufferedImage theImage,
+				int minX, int minY, int width, int height, int periodX,
+				int periodY, int[] bands) {
+			if (updatedRows == null) {
+				updatedRows = new boolean[theImage.getHeight()];
+			}
+			assertEquals(0, minX);
+			assertEquals(theImage.getWidth(), width);
+			for (int y = minY; y < minY + height; y++) {
+				assertFalse(updatedRows[y]);
+				updatedRows[y] = true;
+			}
+		}
+
+		public void sequenceStarted(ImageReader source, int minIndex) {
+		}
+
+		public void sequenceComplete(ImageReader source) {
+		}
+
+		public void thumbnailStarted(ImageReader source, int imageIndex,
+				int thumbnailIndex) {
+		}
+
+		public void thumbnailProgress(ImageReader source,
+				float percentageDone) {
+		}
+
+		public void thumbnailComplete(ImageReader source) {
+		}
+
+		public void passStarted(ImageReader source, BufferedImage theImage,
+				int pass, int minPass, int maxPass, int minX, int minY,
+				int periodX, int periodY, int[] bands) {
+		}
+
+		public void passComplete(ImageReader source, BufferedImage theImage) {
+		}
+
+		public void thumbnailPassStarted(ImageReader source,
+				BufferedImage theThumbnail, int pass, int minPass,
+				int maxPass, int minX, int minY, int periodX, int periodY,
+				int[] bands) {
+		}
+
+		public void thumbnailUpdate(ImageReader source,
+				BufferedImage theThumbnail, int minX, int minY, int width,
+				int height, int periodX, int periodY, int[] bands) {
+		}
+
+		public void thumbnailPassComplete(ImageReader source,
+				BufferedImage theThumbnail) {
+		}
+
+	}
+
+	/**
+	 * Test that the reader reports its progress and the updated rows to the
+	 * listeners, sequentially and in parallel, and that it stops reading 
+	 * when an abort is requested.
+	 * 
+	 * @throws IOException
+	 */
+	public void testProgress() throws IOException {
+		File file = File.createTempFile("progress", ".ppm");
+		ImageReader reader = ImageIO.getImageReadersByFormatName("ppm").next();
+		try {
+			Files.write(file.toPath(), rawImages(40, 301));
+			for (int parallelism = 1; parallelism <= 4; parallelism += 3) {
+				for (Object input : new Object[] { file,
+						ImageIO.createImageInputStream(file) }) {
+					reader.setInput(input);
+					PbmImageReadParam param =
+							(PbmImageReadParam) reader.getDefaultReadParam();
+					param.setParallelism(parallelism);
+					param.setSourceSubsampling(1, 2, 0, 0);
+
+					Recorder recorder = new Recorder(-1);
+					reader.addIIOReadProgressListener(recorder);
+					reader.addIIOReadUpdateListener(recorder);
+					reader.read(0, param);
+					reader.removeAllIIOReadProgressListeners();
+					reader.removeAllIIOReadUpdateListeners();
+					assertEquals(Arrays.asList("started", "complete"),
+							recorder.events);
+					assertTrue(recorder.progress.size() > 1);
+					for (int i = 1; i < recorder.progress.size(); i++) {
+						assertTrue(recorder.progress.get(i - 1)
+								<= recorder.progress.get(i));
+					}
+					assertEquals(100.0f, recorder.progress.get(
+							recorder.progress.size() - 1));
+					for (boolean updated : recorder.updatedRows) {
+						assertTrue(updated);
+					}
+
+					recorder = new Recorder(1);
+					reader.addIIOReadProgressListener(recorder);
+					reader.read(0, param);
+					reader.removeAllIIOReadProgressListeners();
+					assertEquals(Arrays.asList("started", "aborted"),
+							recorder.events);
+				}
+			}
+		} finally {
+			reader.dispose();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test that the rows returned by readRows match the rows of the image
+	 * returned by read, for raw and plain images.
+	 * 
+	 * @throws IOException
+	 */
+	public void testReadRows() throws IOException {
+		for (String resource : new String[] { "/potrace.data1.ppm",
+				"/potrace.data1.ppm.plain", "/potrace.data1.pbm" }) {
+			for (int sub = 1; sub <= 3; sub++) {
+				ImageReadParam param = new ImageReadParam();
+				param.setSourceRegion(new Rectangle(5, 7, 60, 50));
+				param.setSourceSubsampling(sub, sub, 0, 0);
+				if (resource.contains(".ppm")) {
+					param.setSourceBands(new int[] { 2, 0 });
+					param.setDestinationBands(new int[] { 0, 1 });
+				} else {
+					param.setDestinationType(ImageTypeSpecifier.createGrayscale(
+							8, DataBuffer.TYPE_BYTE, false));
+				}
+				Raster expected = read(resource, param).getRaster();
+				int bands = param.getSourceBands() != null ? 2 : 1;
+
+				try (ImageInputStream iis = ImageIO.createImageInputStream(
+						getClass().getResourceAsStream(resource))) {
+					PbmImageReader reader = (PbmImageReader) ImageIO
+							.getImageReaders(iis).next();
+					reader.setInput(iis);
+					Iterator<Raster> rows = reader.readRows(0, param);
+					for (int y = 0; y < expected.getHeight(); y++) {
+						assertTrue(rows.hasNext());
+						Raster row = rows.next();
+						assertEquals(expected.getWidth(), row.getWidth());
+						assertEquals(bands, row.getNumBands());
+						for (int b = 0; b < bands; b++) {
+							assertTrue(Arrays.equals(
+									expected.getSamples(0, y,
+											expected.getWidth(), 1, b,
+											(int[]) null),
+									row.getSamples(row.getMinX(),
+											row.getMinY(), row.getWidth(), 1,
+											b, (int[]) null)));
+						}
+					}
+					assertFalse(rows.hasNext());
+				}
+			}
+		}
+
+		// The iteration ends when an abort is requested.
+		try (ImageInputStream iis = ImageIO.createImageInputStream(
+				getClass().getResourceAsStream("/potrace.data1.ppm.plain"))) {
+			PbmImageReader reader = (PbmImageReader) ImageIO
+					.getImageReaders(iis).next();
+			reader.setInput(iis);
+			Iterator<Raster> rows = reader.readRows(0, null);
+			rows.next();
+			reader.abort();
+			assertFalse(rows.hasNext());
+			try {
+				rows.next();
+				fail("Row read after abort");
+			} catch (NoSuchElementException e) {
+				// expected
+			}
+			assertTrue(reader.readRows(0, null).hasNext());
+		}
+	}
+
+	/**
+	 * Test that readRaster returns the same samples as read, both for images
+	 * that are read into the raster with a single bulk read and for images
+	 * that are decoded row by row.
+	 * 
+	 * @throws IOException
+	 */
+	public void testReadRaster() throws IOException {
+		ImageReadParam region = new ImageReadParam();
+		region.setSourceRegion(new Rectangle(3, 4, 30, 20));
+		region.setSourceSubsampling(2, 3, 0, 0);
+		ImageReadParam bands = new ImageReadParam();
+		bands.setSourceBands(new int[] { 0 });
+		bands.setDestinationBands(new int[] { 0 });
+
+		byte[] data = rawImages(40, 30);
+		for (ImageReadParam param : new ImageReadParam[] { null, region }) {
+			try (ImageInputStream iis = ImageIO.createImageInputStream(
+					new ByteArrayInputStream(data))) {
+				ImageReader reader = ImageIO.getImageReaders(iis).next();
+				reader.setInput(iis);
+				assertTrue(reader.canReadRaster());
+				for (int i = 0; i < 4; i++) {
+					BufferedImage img = reader.read(i, param);
+					Raster raster = reader.readRaster(i, param);
+					assertEquals(img.getWidth(), raster.getWidth());
+					assertEquals(img.getHeight(), raster.getHeight());
+					assertTrue(Arrays.equals(pixels(img),
+							raster.getPixels(0, 0, raster.getWidth(),
+									raster.getHeight(), (int[]) null)));
+				}
+			}
+		}
+
+		try (ImageInputStream iis = ImageIO.createImageInputStream(
+				getClass().getResourceAsStream("/potrace.data1.ppm.plain"))) {
+			ImageReader reader = ImageIO.getImageReaders(iis).next();
+			reader.setInput(iis);
+			BufferedImage img = reader.read(0, bands);
+			Raster raster = reader.readRaster(0, bands);
+			assertEquals(1, raster.getNumBands());
+			assertTrue(Arrays.equals(
+					img.getRaster().getSamples(0, 0, img.getWidth(),
+							img.getHeight(), 0, (int[]) null),
+					raster.getSamples(0, 0, raster.getWidth(),
+							raster.getHeight(), 0, (int[]) null)));
+		}
+	}
+
+	/**
+	 * Test decoding images into arrays and buffers of the caller, with
+	 * padding between the rows, and that the samples match those of the
+	 * images returned by read.
+	 * 
+	 * @throws IOException
+	 */
+	public void testReadInto() throws IOException {
+		byte[] data = rawImages(40, 30);
+		try (ImageInputStream iis = ImageIO.createImageInputStream(
+				new ByteArrayInputStream(data))) {
+			PbmImageReader reader = (PbmImageReader) ImageIO
+					.getImageReaders(iis).next();
+			reader.setInput(iis);
+			ImageReadParam gray = new ImageReadParam();
+			gray.setDestinationType(ImageTypeSpecifier.createGrayscale(
+					8, DataBuffer.TYPE_BYTE, false));
+			for (int i = 0; i < 4; i++) {
+				BufferedImage img = reader.read(i, i == 3 ? gray : null);
+				int[] expected = pixels(img);
+				boolean wide = i == 1;
+				int rowBytes = expected.length / 30 * (wide ? 2 : 1);
+				int stride = rowBytes + 5;
+
+				byte[] array = new byte[3 + 30 * stride];
+				reader.readInto(i, array, 3, stride);
+				ByteBuffer heap = ByteBuffer.allocate(7 + 30 * stride);
+				heap.position(7);
+				reader.readInto(i, heap, stride);
+				assertEquals(7, heap.position());
+				ByteBuffer direct = ByteBuffer.allocateDirect(30 * stride)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				reader.readInto(i, direct, stride);
+
+				int[] fromArray = new int[expected.length];
+				int[] fromHeap = new int[expected.length];
+				int[] fromDirect = new int[expected.length];
+				int n = 0;
+				for (int y = 0; y < 30; y++) {
+					for (int x = 0; x < rowBytes; x += wide ? 2 : 1) {
+						if (wide) {
+							fromArray[n] = (array[3 + y * stride + x] & 0xff) << 8
+									| (array[4 + y * stride + x] & 0xff);
+							fromHeap[n] = heap.getShort(7 + y * stride + x)
+									& 0xffff;
+							fromDirect[n] = direct.getShort(y * stride + x)
+									& 0xffff;
+						} else {
+							fromArray[n] = array[3 + y * stride + x] & 0xff;
+							fromHeap[n] = heap.get(7 + y * stride + x) & 0xff;
+							fromDirect[n] = direct.get(y * stride + x) & 0xff;
+						}
+						n++;
+					}
+				}
+				assertTrue(Arrays.equals(expected, fromArray));
+				assertTrue(Arrays.equals(expected, fromHeap));
+				assertTrue(Arrays.equals(expected, fromDirect));
+			}
+
+			try {
+				reader.readInto(0, new byte[40 * 30 * 3 - 1], 0, 40 * 3);
+				fail("Expected IllegalArgumentException");
+			} catch (IllegalArgumentException e) {
+				// The image doesn't fit.
+			}
+
+			// Progress is reported like for read, and reading stops when an
+			// abort is requested.
+			byte[] array = new byte[40 * 30 * 3];
+			Recorder recorder = new Recorder(-1);
+			reader.addIIOReadProgressListener(recorder);
+			reader.readInto(0, array, 0, 40 * 3);
+			reader.removeAllIIOReadProgressListeners();
+			assertEquals(Arrays.asList("started", "complete"),
+					recorder.events);
+			assertTrue(recorder.progress.size() > 1);
+			assertEquals(100.0f, recorder.progress.get(
+					recorder.progress.size() - 1));
+			recorder = new Recorder(1);
+			reader.addIIOReadProgressListener(recorder);
+			reader.readInto(0, ByteBuffer.wrap(array), 40 * 3);
+			reader.removeAllIIOReadProgressListeners();
+			assertEquals(Arrays.asList("started", "aborted"),
+					recorder.events);
+		}
+
+		// Truncated image data is 0, or rejected in strict mode.
+		byte[] error = resourceBytes("/test.error.pgm");
+		PbmImageReadParam param = new PbmImageReadParam();
+		param.setStrict(true);
+		try (ImageInputStream iis = ImageIO.createImageInputStream(
+				new ByteArrayInputStream(error))) {
+			PbmImageReader reader = (PbmImageReader) ImageIO
+					.getImageReaders(iis).next();
+			reader.setInput(iis);
+			byte[] array = new byte[50];
+			Arrays.fill(array, (byte) -1);
+			reader.readInto(0, array, 0, 10, null);
+			assertEquals(22, array[22]);
+			assertEquals(0, array[49]);
+			try {
+				reader.readInto(0, ByteBuffer.wrap(array), 10, param);
+				fail("Truncated image read");
+			} catch (IIOException e) {
+				assertEquals("Image data truncated in line 2",
+						e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Test that a reader gives the same results when it is reused for other
+	 * inputs, after a reset too, and that it keeps its buffered stream.
+	 * 
+	 * @throws IOException
+	 */
+	public void testReaderReuse() throws IOException {
+		String[] resources = { "/potrace.data1.ppm", "/wiki.feep.pgm",
+				"/potrace.data1.pbm", "/potrace.data1.ppm" };
+		PbmImageReader reader = (PbmImageReader) ImageIO
+				.getImageReadersByFormatName("ppm").next();
+		NetpbmImageInputStream buffered = null;
+		for (String resource : resources) {
+			try (ImageInputStream iis = ImageIO.createImageInputStream(
+					getClass().getResourceAsStream(resource))) {
+				reader.setInput(iis);
+				if (buffered == null) {
+					buffered = reader.stream;
+				}
+				assertSame(buffered, reader.stream);
+				assertTrue(Arrays.equals(pixels(read(resource, null)),
+						pixels(reader.read(0))));
+			}
+			reader.reset();
+			assertNull(reader.getInput());
+		}
+		reader.dispose();
+		assertNull(reader.stream);
+	}
+
 }
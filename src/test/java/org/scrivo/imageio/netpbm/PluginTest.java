@@ -20,6 +20,7 @@ public class PluginTest extends TestCase {
 		assertTrue(formatNames.contains("pbm"));
 		assertTrue(formatNames.contains("pgm"));
 		assertTrue(formatNames.contains("ppm"));
+		assertTrue(formatNames.contains("pam"));
 
 		Set<String> mimeTypes = new HashSet<>(Arrays.asList(
 				ImageIO.getReaderMIMETypes()));
@@ -32,6 +33,16 @@ public class PluginTest extends TestCase {
 		assertTrue(suffixes.contains("pbm"));
 		assertTrue(suffixes.contains("PGM"));
 		assertTrue(suffixes.contains("ppm.plain"));
+
+		formatNames = new HashSet<>(Arrays.asList(
+				ImageIO.getWriterFormatNames()));
+		assertTrue(formatNames.contains("pbm"));
+		assertTrue(formatNames.contains("pgm"));
+		assertTrue(formatNames.contains("ppm"));
+
+		mimeTypes = new HashSet<>(Arrays.asList(
+				ImageIO.getWriterMIMETypes()));
+		assertTrue(mimeTypes.contains("image/x-portable-pixmap"));
 	}
 
 }
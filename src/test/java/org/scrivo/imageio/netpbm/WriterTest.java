@@ -0,0 +1,254 @@
+package org.scrivo.imageio.netpbm;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import junit.framework.TestCase;
+
+public class WriterTest extends TestCase {
+
+	private static final String[] RESOURCES = {
+			"/potrace.data1.pbm", "/gimp.bricks.pgm", "/gimp.fabi.ppm",
+			"/wiki.feep.pgm", "/wiki.sample1.ppm" };
+
+	private byte[] write(BufferedImage image, PbmImageWriteParam param)
+			throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("ppm").next();
+		assertTrue(writer instanceof PbmImageWriter);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(bos)) {
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(image, null, null), param);
+		}
+		writer.dispose();
+		return bos.toByteArray();
+	}
+
+	private void assertSameImage(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++) {
+				assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+			}
+		}
+	}
+
+	private static String signature(byte[] data) {
+		return new String(data, 0, 2);
+	}
+
+	/**
+	 * Test that images survive a round-trip in raw and plain format.
+	 *
+	 * @throws IOException
+	 */
+	public void testRoundTrip() throws IOException {
+		for (String resource : RESOURCES) {
+			BufferedImage image = ImageIO.read(
+					getClass().getResourceAsStream(resource));
+			for (boolean plain : new boolean[] { false, true }) {
+				PbmImageWriteParam param = new PbmImageWriteParam();
+				param.setPlain(plain);
+				byte[] data = write(image, param);
+				assertSameImage(image,
+						ImageIO.read(new ByteArrayInputStream(data)));
+			}
+		}
+	}
+
+	/**
+	 * Test the format that is chosen for different types of images.
+	 *
+	 * @throws IOException
+	 */
+	public void testFormats() throws IOException {
+		PbmImageWriteParam plain = new PbmImageWriteParam();
+		plain.setPlain(true);
+
+		BufferedImage binary = new BufferedImage(10, 3,
+				BufferedImage.TYPE_BYTE_BINARY);
+		binary.setRGB(1, 1, 0xffffff);
+		assertEquals("P4", signature(write(binary, null)));
+		assertEquals("P1", signature(write(binary, plain)));
+		assertEquals("P1\n10 3\n1111111111\n1011111111\n1111111111\n",
+				new String(write(binary, plain), "US-ASCII"));
+
+		BufferedImage gray = new BufferedImage(2, 1,
+				BufferedImage.TYPE_BYTE_GRAY);
+		assertEquals("P5", signature(write(gray, null)));
+		assertEquals("P2", signature(write(gray, plain)));
+
+		BufferedImage rgb = new BufferedImage(2, 1,
+				BufferedImage.TYPE_INT_RGB);
+		rgb.setRGB(0, 0, 0x0a141e);
+		assertEquals("P6", signature(write(rgb, null)));
+		assertEquals("P3\n2 1\n255\n10 20 30 0 0 0\n",
+				new String(write(rgb, plain), "US-ASCII"));
+	}
+
+	/**
+	 * Test that plain lines don't exceed 70 characters.
+	 *
+	 * @throws IOException
+	 */
+	public void testPlainLineLength() throws IOException {
+		BufferedImage image = ImageIO.read(
+				getClass().getResourceAsStream("/gimp.fabi.ppm"));
+		PbmImageWriteParam param = new PbmImageWriteParam();
+		param.setPlain(true);
+		String data = new String(write(image, param), "US-ASCII");
+		for (String line : data.split("\n")) {
+			assertTrue(line.length() <= 70);
+		}
+	}
+
+	/**
+	 * Test writing a different maxColor value, a source region and
+	 * subsampling.
+	 *
+	 * @throws IOException
+	 */
+	public void testParam() throws IOException {
+		BufferedImage gray = new BufferedImage(4, 2,
+				BufferedImage.TYPE_BYTE_GRAY);
+		byte[] raster = { 0, 51, 102, (byte) 255, 1, 2, 3, 4 };
+		gray.getRaster().setDataElements(0, 0, 4, 2, raster);
+		PbmImageWriteParam param = new PbmImageWriteParam();
+		param.setPlain(true);
+		param.setMaxColor(5);
+		assertEquals("P2\n4 2\n5\n0 1 2 5\n0 0 0 0\n",
+				new String(write(gray, param), "US-ASCII"));
+
+		param = new PbmImageWriteParam();
+		param.setPlain(true);
+		param.setSourceRegion(new Rectangle(1, 0, 3, 2));
+		param.setSourceSubsampling(2, 1, 0, 0);
+		assertEquals("P2\n2 2\n255\n51 255\n2 4\n",
+				new String(write(gray, param), "US-ASCII"));
+
+		param.setMaxColor(1000);
+		param.setPlain(false);
+		byte[] data = write(gray, param);
+		assertEquals("P5\n2 2\n1000\n", new String(data, 0, 12, "US-ASCII"));
+		assertEquals(12 + 2 * 2 * 2, data.length);
+		assertEquals(1000, ((data[14] & 0xff) << 8) | (data[15] & 0xff));
+	}
+
+	/**
+	 * Test that 16 bit samples survive a round-trip.
+	 *
+	 * @throws IOException
+	 */
+	public void testWideRoundTrip() throws IOException {
+		BufferedImage gray = new BufferedImage(300, 2,
+				BufferedImage.TYPE_USHORT_GRAY);
+		for (int x = 0; x < 300; x++) {
+			gray.getRaster().setSample(x, 0, 0, x * 217);
+			gray.getRaster().setSample(x, 1, 0, 65535 - x);
+		}
+		for (boolean plain : new boolean[] { false, true }) {
+			PbmImageWriteParam param = new PbmImageWriteParam();
+			param.setPlain(plain);
+			BufferedImage read = ImageIO.read(
+					new ByteArrayInputStream(write(gray, param)));
+			for (int y = 0; y < 2; y++) {
+				for (int x = 0; x < 300; x++) {
+					assertEquals(gray.getRaster().getSample(x, y, 0),
+							read.getRaster().getSample(x, y, 0));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test that images with alpha survive a round-trip as PAM image.
+	 *
+	 * @throws IOException
+	 */
+	public void testAlphaRoundTrip() throws IOException {
+		for (int type : new int[] { BufferedImage.TYPE_INT_ARGB,
+				BufferedImage.TYPE_4BYTE_ABGR }) {
+			BufferedImage image = new BufferedImage(20, 10, type);
+			for (int y = 0; y < 10; y++) {
+				for (int x = 0; x < 20; x++) {
+					image.setRGB(x, y, (x * 12) << 24 | (y * 20) << 16 | x * y);
+				}
+			}
+			byte[] data = write(image, null);
+			assertEquals("P7", signature(data));
+			assertSameImage(image, ImageIO.read(new ByteArrayInputStream(data)));
+
+			PbmImageWriteParam param = new PbmImageWriteParam();
+			param.setPlain(true);
+			try {
+				write(image, param);
+				fail("Expected an exception for plain images with alpha");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Test that images of which the bands differ in size are written with
+	 * the largest sample size, scaling the samples of the other bands.
+	 *
+	 * @throws IOException
+	 */
+	public void testMixedSampleSizes() throws IOException {
+		BufferedImage image = new BufferedImage(32, 64,
+				BufferedImage.TYPE_USHORT_565_RGB);
+		for (int y = 0; y < 64; y++) {
+			for (int x = 0; x < 32; x++) {
+				image.setRGB(x, y, (x * 8) << 16 | (y * 4) << 8 | (31 - x) * 8);
+			}
+		}
+		byte[] data = write(image, null);
+		String header = "P6\n32 64\n63\n";
+		assertEquals(header, new String(data, 0, header.length(), "US-ASCII"));
+		for (int i = header.length(); i < data.length; i++) {
+			assertTrue(data[i] >= 0 && data[i] <= 63);
+		}
+		BufferedImage read = ImageIO.read(new ByteArrayInputStream(data));
+		for (int y = 0; y < 64; y++) {
+			for (int x = 0; x < 32; x++) {
+				int expected = image.getRGB(x, y);
+				int actual = read.getRGB(x, y);
+				for (int shift = 0; shift < 24; shift += 8) {
+					assertTrue(Math.abs((expected >> shift & 0xff)
+							- (actual >> shift & 0xff)) <= 4);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test that images the writer can't encode, like palette images and
+	 * images with premultiplied alpha, are rejected.
+	 *
+	 * @throws IOException
+	 */
+	public void testUnsupportedTypes() throws IOException {
+		for (int type : new int[] { BufferedImage.TYPE_BYTE_INDEXED,
+				BufferedImage.TYPE_INT_ARGB_PRE,
+				BufferedImage.TYPE_4BYTE_ABGR_PRE }) {
+			try {
+				write(new BufferedImage(4, 3, type), null);
+				fail("Image of type " + type + " written");
+			} catch (IIOException e) {
+				// expected
+			}
+		}
+	}
+
+}